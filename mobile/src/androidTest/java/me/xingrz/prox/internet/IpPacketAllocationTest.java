@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2015 XiNGRZ <chenxingyu92@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package me.xingrz.prox.internet;
+
+import android.os.Debug;
+
+import junit.framework.TestCase;
+import me.xingrz.prox.logging.FormattingLogger;
+import me.xingrz.prox.logging.FormattingLoggers;
+
+/**
+ * {@link IpPacket} 解析和改写的分配计数
+ * <p/>
+ * 按 VPN 线程的做法，反复解析同一个 TCP 或 UDP 包，改写成发往本地代理的样子再改回来，
+ * 用 {@link Debug} 的线程分配计数确认整个过程一个对象也不分配，同时确认增量更新后的 Checksum 仍然正确。
+ * <p/>
+ * 分配计数只在可调试的应用里有效，跑之前先预热几轮，避免把类初始化和 JIT 编译算进去。
+ *
+ * @author XiNGRZ
+ */
+@SuppressWarnings("deprecation")
+public class IpPacketAllocationTest extends TestCase {
+
+    private static final FormattingLogger logger = FormattingLoggers.getLogger("IpPacketTest");
+
+    private static final int ITERATIONS = 100000;
+
+    /**
+     * 预热多跑几轮，让 JIT 在计数开始前编译完
+     */
+    private static final int WARM_UP_ROUNDS = 5;
+
+    private static final int CLIENT_IP = 0x0a000002;
+    private static final int REMOTE_IP = 0x5db8d822;
+    private static final int PROXY_IP = 0x0a000001;
+    private static final int FAKE_CLIENT_IP = 0x0a000003;
+
+    private static final int PAYLOAD_LENGTH = 512;
+
+    public void testTcp() {
+        byte[] packet = buildPacket(IpPacket.PROTOCOL_TCP, 20);
+
+        // ACK|PSH
+        packet[20 + 12] = 5 << 4;
+        packet[20 + 13] = 0x18;
+
+        run("TCP", packet);
+    }
+
+    public void testUdp() {
+        byte[] packet = buildPacket(IpPacket.PROTOCOL_UDP, 8);
+        NumericUtils.writeShort(packet, 20 + 4, packet.length - 20);
+
+        run("UDP", packet);
+    }
+
+    private void run(String name, byte[] packet) {
+        IpPacket ipPacket = new IpPacket();
+        assertTrue(ipPacket.parse(packet, packet.length));
+        ipPacket.recomputeChecksum();
+        assertTrue(ipPacket.isChecksumValid());
+
+        for (int i = 0; i < WARM_UP_ROUNDS; i++) {
+            rewrite(ipPacket, packet, ITERATIONS);
+        }
+
+        Debug.startAllocCounting();
+        Debug.resetThreadAllocCount();
+
+        long start = System.nanoTime();
+        rewrite(ipPacket, packet, ITERATIONS);
+        long elapsed = System.nanoTime() - start;
+
+        int allocations = Debug.getThreadAllocCount();
+        Debug.stopAllocCounting();
+
+        logger.d("%s: %d packets, %d allocations, %d ns/packet", name, ITERATIONS, allocations, elapsed / ITERATIONS);
+
+        assertEquals(0, allocations);
+
+        assertTrue(ipPacket.parse(packet, packet.length));
+        assertTrue(ipPacket.isChecksumValid());
+        assertEquals(CLIENT_IP, ipPacket.getSourceIp());
+        assertEquals(40000, ipPacket.getSourcePort());
+        assertEquals(REMOTE_IP, ipPacket.getDestinationIp());
+        assertEquals(443, ipPacket.getDestinationPort());
+    }
+
+    /**
+     * 先改写成客户端发往本地代理，再改写成代理回给客户端，一来一回数据包恢复原样
+     */
+    private void rewrite(IpPacket ipPacket, byte[] packet, int iterations) {
+        for (int i = 0; i < iterations; i++) {
+            if (!ipPacket.parse(packet, packet.length)) {
+                fail();
+            }
+
+            int sourceIp = ipPacket.getSourceIp();
+            int sourcePort = ipPacket.getSourcePort();
+            int remoteIp = ipPacket.getDestinationIp();
+            int remotePort = ipPacket.getDestinationPort();
+
+            ipPacket.setSourceIp(FAKE_CLIENT_IP);
+            ipPacket.setSourcePort(20000 + (i & 0xfff));
+            ipPacket.setDestinationIp(PROXY_IP);
+            ipPacket.setDestinationPort(8080);
+
+            if (!ipPacket.parse(packet, packet.length)) {
+                fail();
+            }
+
+            ipPacket.setSourceIp(sourceIp);
+            ipPacket.setSourcePort(sourcePort);
+            ipPacket.setDestinationIp(remoteIp);
+            ipPacket.setDestinationPort(remotePort);
+        }
+    }
+
+    /**
+     * 构造一个 IPv4 包，传输层首部只填端口，负载填上固定的内容
+     */
+    private static byte[] buildPacket(int protocol, int transportHeaderLength) {
+        byte[] packet = new byte[20 + transportHeaderLength + PAYLOAD_LENGTH];
+
+        packet[0] = 0x45;
+        NumericUtils.writeShort(packet, 2, packet.length);
+        NumericUtils.writeShort(packet, 6, 0x4000);
+        packet[8] = 64;
+        packet[9] = (byte) protocol;
+        NumericUtils.writeInt(packet, 12, CLIENT_IP);
+        NumericUtils.writeInt(packet, 16, REMOTE_IP);
+
+        NumericUtils.writeShort(packet, 20, 40000);
+        NumericUtils.writeShort(packet, 22, 443);
+
+        for (int i = 20 + transportHeaderLength; i < packet.length; i++) {
+            packet[i] = (byte) i;
+        }
+
+        return packet;
+    }
+
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2015 XiNGRZ <chenxingyu92@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package me.xingrz.prox.tcp.http;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * 构造测试用的 TLS ClientHello
+ * <p/>
+ * 握手消息按 {@link #recordLength(int)} 切成多个记录，SNI、ALPN 和填充扩展按需加入，
+ * 也可以直接给出整个扩展块的原始内容来构造格式错误的输入。
+ *
+ * @author XiNGRZ
+ */
+final class ClientHelloBuilder {
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private static final int EXTENSION_SERVER_NAME = 0x0000;
+    private static final int EXTENSION_SUPPORTED_GROUPS = 0x000a;
+    private static final int EXTENSION_ALPN = 0x0010;
+    private static final int EXTENSION_PADDING = 0x0015;
+
+    private String serverName;
+    private String[] alpnProtocols = new String[0];
+    private int paddingLength;
+    private boolean extensions = true;
+    private byte[] rawExtensions;
+    private int recordLength = 16384;
+
+    ClientHelloBuilder serverName(String serverName) {
+        this.serverName = serverName;
+        return this;
+    }
+
+    ClientHelloBuilder alpn(String... protocols) {
+        this.alpnProtocols = protocols;
+        return this;
+    }
+
+    /**
+     * 在 SNI 之前加一个这么长的填充扩展，用来把 ClientHello 撑大，SNI 和 ALPN 也跟着挤到后面的记录里
+     */
+    ClientHelloBuilder padding(int length) {
+        this.paddingLength = length;
+        return this;
+    }
+
+    /**
+     * 不带扩展块，老式的 ClientHello
+     */
+    ClientHelloBuilder noExtensions() {
+        this.extensions = false;
+        return this;
+    }
+
+    /**
+     * 用原始内容代替整个扩展块，长度字段仍然按它的实际长度写
+     */
+    ClientHelloBuilder rawExtensions(byte[] content) {
+        this.rawExtensions = content;
+        return this;
+    }
+
+    /**
+     * 每个记录最多装多少字节的握手数据
+     */
+    ClientHelloBuilder recordLength(int length) {
+        this.recordLength = length;
+        return this;
+    }
+
+    byte[] build() {
+        byte[] handshake = handshake();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int offset = 0; offset < handshake.length; offset += recordLength) {
+            int length = Math.min(recordLength, handshake.length - offset);
+            out.write(0x16);
+            write16(out, 0x0301);
+            write16(out, length);
+            out.write(handshake, offset, length);
+        }
+
+        return out.toByteArray();
+    }
+
+    private byte[] handshake() {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+        // Client Version + Random
+        write16(body, 0x0303);
+        for (int i = 0; i < 32; i++) {
+            body.write(i);
+        }
+
+        // Session ID
+        body.write(32);
+        for (int i = 0; i < 32; i++) {
+            body.write(0xff - i);
+        }
+
+        // Cipher Suites
+        write16(body, 16 * 2);
+        for (int i = 0; i < 16; i++) {
+            write16(body, 0xc000 + i);
+        }
+
+        // Compression Methods
+        body.write(1);
+        body.write(0);
+
+        if (extensions) {
+            byte[] content = rawExtensions != null ? rawExtensions : extensions();
+            write16(body, content.length);
+            body.write(content, 0, content.length);
+        }
+
+        ByteArrayOutputStream message = new ByteArrayOutputStream();
+        message.write(0x01);
+        write24(message, body.size());
+        message.write(body.toByteArray(), 0, body.size());
+        return message.toByteArray();
+    }
+
+    private byte[] extensions() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        // 真实的 ClientHello 里 SNI 之前通常还有别的扩展
+        writeExtension(out, EXTENSION_SUPPORTED_GROUPS, new byte[]{0x00, 0x04, 0x00, 0x1d, 0x00, 0x17});
+
+        if (paddingLength > 0) {
+            writeExtension(out, EXTENSION_PADDING, new byte[paddingLength]);
+        }
+
+        if (serverName != null) {
+            byte[] name = serverName.getBytes(ASCII);
+            ByteArrayOutputStream data = new ByteArrayOutputStream();
+            write16(data, 3 + name.length);
+            data.write(0x00);
+            write16(data, name.length);
+            data.write(name, 0, name.length);
+            writeExtension(out, EXTENSION_SERVER_NAME, data.toByteArray());
+        }
+
+        if (alpnProtocols.length > 0) {
+            ByteArrayOutputStream list = new ByteArrayOutputStream();
+            for (String protocol : alpnProtocols) {
+                byte[] name = protocol.getBytes(ASCII);
+                list.write(name.length);
+                list.write(name, 0, name.length);
+            }
+
+            ByteArrayOutputStream data = new ByteArrayOutputStream();
+            write16(data, list.size());
+            data.write(list.toByteArray(), 0, list.size());
+            writeExtension(out, EXTENSION_ALPN, data.toByteArray());
+        }
+
+        return out.toByteArray();
+    }
+
+    static void writeExtension(ByteArrayOutputStream out, int type, byte[] data) {
+        write16(out, type);
+        write16(out, data.length);
+        out.write(data, 0, data.length);
+    }
+
+    static void write16(ByteArrayOutputStream out, int value) {
+        out.write(value >> 8);
+        out.write(value);
+    }
+
+    private static void write24(ByteArrayOutputStream out, int value) {
+        out.write(value >> 16);
+        out.write(value >> 8);
+        out.write(value);
+    }
+
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2015 XiNGRZ <chenxingyu92@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package me.xingrz.prox.tcp.http;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import junit.framework.TestCase;
+import me.xingrz.prox.logging.FormattingLogger;
+import me.xingrz.prox.logging.FormattingLoggers;
+
+/**
+ * {@link HttpHeaderParser} 解析 HTTP 请求头找出 Host 的耗时
+ * <p/>
+ * 分别测常见的 GET、带正文的 POST、CONNECT，以及 Host 排在几 KB Cookie 之后的大请求头。
+ * 大请求头再按一个 MSS 一段地分多次喂入，和嗅探时数据陆续到达的情况一样。
+ * <p/>
+ * 只输出每次解析的耗时，不设门槛，结果看日志。
+ *
+ * @author XiNGRZ
+ */
+public class HttpHeaderParserBenchmark extends TestCase {
+
+    private static final FormattingLogger logger = FormattingLoggers.getLogger("HttpParserBenchmark");
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private static final int ITERATIONS = 200000;
+
+    private static final int LARGE_ITERATIONS = 20000;
+
+    /**
+     * 分段喂入时每段的长度
+     */
+    private static final int SEGMENT_LENGTH = 1460;
+
+    public void testGet() {
+        benchmark("GET", request(
+                "GET /search?q=prox HTTP/1.1\r\n" +
+                        "Host: www.example.com\r\n" +
+                        "User-Agent: Mozilla/5.0 (Linux; Android 5.0)\r\n" +
+                        "Accept: */*\r\n" +
+                        "\r\n"), "www.example.com", ITERATIONS);
+    }
+
+    public void testPost() {
+        benchmark("POST", request(
+                "POST /api/v1/upload HTTP/1.1\r\n" +
+                        "User-Agent: Mozilla/5.0 (Linux; Android 5.0)\r\n" +
+                        "Content-Type: application/x-www-form-urlencoded\r\n" +
+                        "Content-Length: 27\r\n" +
+                        "HOST: api.example.com:8080\r\n" +
+                        "\r\n" +
+                        "name=prox&value=benchmark!!"), "api.example.com", ITERATIONS);
+    }
+
+    public void testConnect() {
+        benchmark("CONNECT", request(
+                "CONNECT www.example.com:443 HTTP/1.1\r\n" +
+                        "Host: www.example.com:443\r\n" +
+                        "Proxy-Connection: keep-alive\r\n" +
+                        "\r\n"), "www.example.com", ITERATIONS);
+    }
+
+    public void testLargeHeaders() {
+        StringBuilder cookie = new StringBuilder("Cookie: ");
+        for (int i = 0; cookie.length() < 8192; i++) {
+            cookie.append("session_").append(i).append("=0123456789abcdef0123456789abcdef; ");
+        }
+
+        byte[] request = request(
+                "GET /index.html HTTP/1.1\r\n" +
+                        "User-Agent: Mozilla/5.0 (Linux; Android 5.0)\r\n" +
+                        "Accept: text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8\r\n" +
+                        "Accept-Language: zh-CN,zh;q=0.8,en;q=0.6\r\n" +
+                        cookie + "\r\n" +
+                        "Host: www.example.com\r\n" +
+                        "\r\n");
+
+        benchmark("large headers", request, "www.example.com", LARGE_ITERATIONS);
+        benchmarkSegmented(request, "www.example.com", LARGE_ITERATIONS);
+    }
+
+    private static byte[] request(String request) {
+        return request.getBytes(ASCII);
+    }
+
+    private void benchmark(String name, byte[] request, String host, int iterations) {
+        ByteBuffer buffer = ByteBuffer.wrap(request);
+
+        // 先跑一遍预热
+        parse(buffer, host, iterations);
+
+        long start = System.nanoTime();
+        parse(buffer, host, iterations);
+        long elapsed = System.nanoTime() - start;
+
+        logger.d("%s (%d bytes): %d ns/parse", name, request.length, elapsed / iterations);
+    }
+
+    private void parse(ByteBuffer buffer, String host, int iterations) {
+        for (int i = 0; i < iterations; i++) {
+            HttpHeaderParser parser = new HttpHeaderParser();
+            if (!parser.parse(buffer) || !host.equals(parser.getHost())) {
+                fail("Failed parsing host at iteration " + i);
+            }
+        }
+    }
+
+    private void benchmarkSegmented(byte[] request, String host, int iterations) {
+        ByteBuffer buffer = ByteBuffer.wrap(request);
+
+        parseSegmented(buffer, host, iterations);
+
+        long start = System.nanoTime();
+        parseSegmented(buffer, host, iterations);
+        long elapsed = System.nanoTime() - start;
+
+        logger.d("large headers in %d bytes segments (%d bytes): %d ns/parse",
+                SEGMENT_LENGTH, request.length, elapsed / iterations);
+    }
+
+    /**
+     * 每次喂入从头累积到当前段末尾的数据，只有最后一段能得出结论
+     */
+    private void parseSegmented(ByteBuffer buffer, String host, int iterations) {
+        int length = buffer.capacity();
+
+        for (int i = 0; i < iterations; i++) {
+            HttpHeaderParser parser = new HttpHeaderParser();
+
+            boolean done = false;
+            for (int limit = SEGMENT_LENGTH; !done; limit += SEGMENT_LENGTH) {
+                buffer.limit(Math.min(limit, length));
+                done = parser.parse(buffer);
+
+                if (!done && buffer.limit() == length) {
+                    break;
+                }
+            }
+
+            if (!done || !host.equals(parser.getHost())) {
+                fail("Failed parsing host at iteration " + i);
+            }
+        }
+
+        buffer.limit(length);
+    }
+
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2015 XiNGRZ <chenxingyu92@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package me.xingrz.prox.tcp.http;
+
+import java.nio.ByteBuffer;
+
+import junit.framework.TestCase;
+import me.xingrz.prox.logging.FormattingLogger;
+import me.xingrz.prox.logging.FormattingLoggers;
+
+/**
+ * {@link TlsClientHelloParser} 取出 SNI 和 ALPN 的耗时
+ * <p/>
+ * 分别测装在一个记录里的常见 ClientHello、切成多个小记录的同一个 ClientHello，
+ * 以及带着大块密钥、按一个 MSS 一段分多次喂入的大 ClientHello。
+ * <p/>
+ * 只输出每次解析的耗时，不设门槛，结果看日志。
+ *
+ * @author XiNGRZ
+ */
+public class TlsClientHelloParserBenchmark extends TestCase {
+
+    private static final FormattingLogger logger = FormattingLoggers.getLogger("TlsParserBenchmark");
+
+    private static final int ITERATIONS = 200000;
+
+    /**
+     * 分段喂入时每段的长度
+     */
+    private static final int SEGMENT_LENGTH = 1460;
+
+    private static final String SERVER_NAME = "www.example.com";
+
+    public void testSingleRecord() {
+        benchmark("single record", new ClientHelloBuilder()
+                .padding(200)
+                .serverName(SERVER_NAME)
+                .alpn("h2", "http/1.1")
+                .build(), Integer.MAX_VALUE);
+    }
+
+    public void testSplitRecords() {
+        benchmark("64 bytes records", new ClientHelloBuilder()
+                .padding(200)
+                .serverName(SERVER_NAME)
+                .alpn("h2", "http/1.1")
+                .recordLength(64)
+                .build(), Integer.MAX_VALUE);
+    }
+
+    public void testLargeSegmented() {
+        benchmark("large in " + SEGMENT_LENGTH + " bytes segments", new ClientHelloBuilder()
+                .padding(1800)
+                .serverName(SERVER_NAME)
+                .alpn("h2", "http/1.1")
+                .build(), SEGMENT_LENGTH);
+    }
+
+    private void benchmark(String name, byte[] hello, int segmentLength) {
+        ByteBuffer buffer = ByteBuffer.wrap(hello);
+
+        // 先跑一遍预热
+        parse(buffer, segmentLength);
+
+        long start = System.nanoTime();
+        parse(buffer, segmentLength);
+        long elapsed = System.nanoTime() - start;
+
+        logger.d("%s (%d bytes): %d ns/parse", name, hello.length, elapsed / ITERATIONS);
+    }
+
+    /**
+     * 每次喂入从头累积到当前段末尾的数据
+     */
+    private void parse(ByteBuffer buffer, int segmentLength) {
+        int length = buffer.capacity();
+
+        for (int i = 0; i < ITERATIONS; i++) {
+            TlsClientHelloParser parser = new TlsClientHelloParser();
+
+            int limit = 0;
+            boolean done = false;
+            while (!done && limit < length) {
+                limit = (int) Math.min((long) limit + segmentLength, length);
+                buffer.limit(limit);
+                done = parser.parse(buffer);
+            }
+
+            if (!done || !SERVER_NAME.equals(parser.getServerName()) || !parser.offersHttp2()) {
+                fail("Failed parsing ClientHello at iteration " + i);
+            }
+        }
+
+        buffer.limit(length);
+    }
+
+}
@@ -0,0 +1,297 @@
+/*
+ * Copyright (C) 2015 XiNGRZ <chenxingyu92@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package me.xingrz.prox.tcp.http;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * {@link TlsClientHelloParser} 的样例集
+ * <p/>
+ * 覆盖 SNI 和 ALPN 的提取、ClientHello 被切成多个记录、按字节陆续到达，以及截断和各种格式错误的输入。
+ * 格式错误时应当得出结论而不是一直等下去，也不能抛出异常。
+ *
+ * @author XiNGRZ
+ */
+public class TlsClientHelloParserTest extends TestCase {
+
+    private static final int[] RECORD_LENGTHS = {1, 3, 4, 50, 512, 16384};
+
+    public void testSniAndAlpn() {
+        byte[] hello = new ClientHelloBuilder()
+                .serverName("www.example.com")
+                .alpn("h2", "http/1.1")
+                .build();
+
+        TlsClientHelloParser parser = parseAll(hello);
+        assertEquals("www.example.com", parser.getServerName());
+        assertTrue(Arrays.equals(new String[]{"h2", "http/1.1"}, parser.getAlpnProtocols()));
+        assertSame(TlsClientHelloParser.ALPN_HTTP_2, parser.getAlpnProtocols()[0]);
+        assertSame(TlsClientHelloParser.ALPN_HTTP_1_1, parser.getAlpnProtocols()[1]);
+        assertTrue(parser.offersHttp2());
+    }
+
+    public void testUncommonAlpn() {
+        TlsClientHelloParser parser = parseAll(new ClientHelloBuilder()
+                .serverName("www.example.com")
+                .alpn("spdy/3.1", "http/1.1")
+                .build());
+
+        assertTrue(Arrays.equals(new String[]{"spdy/3.1", "http/1.1"}, parser.getAlpnProtocols()));
+        assertFalse(parser.offersHttp2());
+    }
+
+    public void testNoSni() {
+        TlsClientHelloParser parser = parseAll(new ClientHelloBuilder()
+                .alpn("h2")
+                .build());
+
+        assertNull(parser.getServerName());
+        assertTrue(parser.offersHttp2());
+    }
+
+    public void testNoExtensions() {
+        TlsClientHelloParser parser = parseAll(new ClientHelloBuilder()
+                .noExtensions()
+                .build());
+
+        assertNull(parser.getServerName());
+        assertEquals(0, parser.getAlpnProtocols().length);
+    }
+
+    public void testSniThroughHttpHeaderParser() {
+        byte[] hello = new ClientHelloBuilder()
+                .serverName("www.example.com")
+                .alpn("h2")
+                .build();
+
+        HttpHeaderParser parser = new HttpHeaderParser();
+        assertTrue(parser.parse(ByteBuffer.wrap(hello)));
+        assertEquals(HttpHeaderParser.Protocol.TLS, parser.getProtocol());
+        assertEquals("www.example.com", parser.getHost());
+        assertEquals("h2", parser.getAlpnProtocols()[0]);
+    }
+
+    /**
+     * 握手消息切成各种长度的记录，记录头和握手消息头都可能被拆开
+     */
+    public void testSplitAcrossRecords() {
+        for (int recordLength : RECORD_LENGTHS) {
+            TlsClientHelloParser parser = parseAll(new ClientHelloBuilder()
+                    .serverName("www.example.com")
+                    .alpn("h2", "http/1.1")
+                    .recordLength(recordLength)
+                    .build());
+
+            assertEquals("record length " + recordLength, "www.example.com", parser.getServerName());
+            assertEquals("record length " + recordLength, 2, parser.getAlpnProtocols().length);
+        }
+    }
+
+    /**
+     * 超过一个记录上限的 ClientHello，比如带了很大的填充或者密钥，SNI 落在第二个记录里
+     */
+    public void testLargerThanOneRecord() {
+        TlsClientHelloParser parser = parseAll(new ClientHelloBuilder()
+                .padding(20000)
+                .serverName("www.example.com")
+                .alpn("h2")
+                .build());
+
+        assertEquals("www.example.com", parser.getServerName());
+        assertTrue(parser.offersHttp2());
+    }
+
+    /**
+     * 同一个解析器按字节陆续喂入，只有最后一个字节到齐时才有结论
+     */
+    public void testFedByteByByte() {
+        for (int recordLength : RECORD_LENGTHS) {
+            byte[] hello = new ClientHelloBuilder()
+                    .serverName("www.example.com")
+                    .alpn("h2")
+                    .recordLength(recordLength)
+                    .build();
+
+            ByteBuffer buffer = ByteBuffer.wrap(hello);
+            TlsClientHelloParser parser = new TlsClientHelloParser();
+
+            for (int limit = 0; limit < hello.length; limit++) {
+                buffer.limit(limit);
+                assertFalse("record length " + recordLength + ", limit " + limit, parser.parse(buffer));
+            }
+
+            buffer.limit(hello.length);
+            assertTrue(parser.parse(buffer));
+            assertEquals("www.example.com", parser.getServerName());
+            assertTrue(parser.offersHttp2());
+        }
+    }
+
+    /**
+     * 截断的输入还没有结论，换新的解析器也一样，不会抛出异常
+     */
+    public void testTruncated() {
+        for (int recordLength : RECORD_LENGTHS) {
+            byte[] hello = new ClientHelloBuilder()
+                    .serverName("www.example.com")
+                    .alpn("h2")
+                    .recordLength(recordLength)
+                    .build();
+
+            for (int length = 0; length < hello.length; length++) {
+                TlsClientHelloParser parser = new TlsClientHelloParser();
+                assertFalse("record length " + recordLength + ", length " + length,
+                        parser.parse(ByteBuffer.wrap(hello, 0, length).slice()));
+                assertNull(parser.getServerName());
+            }
+        }
+    }
+
+    public void testNotHandshakeRecord() {
+        byte[] hello = new ClientHelloBuilder().serverName("www.example.com").build();
+        hello[0] = 0x17;
+        assertNotClientHello(hello);
+    }
+
+    public void testWrongMajorVersion() {
+        byte[] hello = new ClientHelloBuilder().serverName("www.example.com").build();
+        hello[1] = 2;
+        assertNotClientHello(hello);
+    }
+
+    public void testEmptyRecord() {
+        byte[] hello = new ClientHelloBuilder().serverName("www.example.com").build();
+        hello[3] = 0;
+        hello[4] = 0;
+        assertNotClientHello(hello);
+    }
+
+    public void testOversizedRecord() {
+        byte[] hello = new ClientHelloBuilder().serverName("www.example.com").build();
+        hello[3] = (byte) 0xff;
+        hello[4] = (byte) 0xff;
+        assertNotClientHello(hello);
+    }
+
+    public void testNotClientHello() {
+        byte[] hello = new ClientHelloBuilder().serverName("www.example.com").build();
+        // ServerHello
+        hello[5] = 0x02;
+        assertNotClientHello(hello);
+    }
+
+    public void testOversizedHandshake() {
+        byte[] hello = new ClientHelloBuilder().serverName("www.example.com").build();
+        hello[6] = 0x7f;
+        assertNotClientHello(hello);
+    }
+
+    public void testExtensionOverrunsBlock() {
+        ByteArrayOutputStream extensions = new ByteArrayOutputStream();
+        ClientHelloBuilder.write16(extensions, 0x0000);
+        ClientHelloBuilder.write16(extensions, 0xffff);
+        extensions.write(0);
+
+        TlsClientHelloParser parser = parseAll(new ClientHelloBuilder()
+                .rawExtensions(extensions.toByteArray())
+                .build());
+
+        assertNull(parser.getServerName());
+    }
+
+    public void testServerNameOverrunsList() {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        ClientHelloBuilder.write16(data, 6);
+        data.write(0x00);
+        ClientHelloBuilder.write16(data, 100);
+        data.write('a');
+        data.write('b');
+        data.write('c');
+
+        ByteArrayOutputStream extensions = new ByteArrayOutputStream();
+        ClientHelloBuilder.writeExtension(extensions, 0x0000, data.toByteArray());
+
+        TlsClientHelloParser parser = parseAll(new ClientHelloBuilder()
+                .rawExtensions(extensions.toByteArray())
+                .build());
+
+        assertNull(parser.getServerName());
+    }
+
+    public void testEmptyAlpnProtocol() {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        ClientHelloBuilder.write16(data, 4);
+        data.write(2);
+        data.write('h');
+        data.write('2');
+        data.write(0);
+
+        ByteArrayOutputStream extensions = new ByteArrayOutputStream();
+        ClientHelloBuilder.writeExtension(extensions, 0x0010, data.toByteArray());
+
+        TlsClientHelloParser parser = parseAll(new ClientHelloBuilder()
+                .rawExtensions(extensions.toByteArray())
+                .build());
+
+        assertEquals(0, parser.getAlpnProtocols().length);
+    }
+
+    /**
+     * 随机改坏几个字节，不管得出什么结论都不能抛出异常
+     */
+    public void testRandomCorruption() {
+        Random random = new Random(0);
+
+        for (int recordLength : RECORD_LENGTHS) {
+            byte[] original = new ClientHelloBuilder()
+                    .serverName("www.example.com")
+                    .alpn("h2", "http/1.1")
+                    .recordLength(recordLength)
+                    .build();
+
+            for (int i = 0; i < 2000; i++) {
+                byte[] hello = original.clone();
+                for (int n = 1 + random.nextInt(4); n > 0; n--) {
+                    hello[random.nextInt(hello.length)] = (byte) random.nextInt(256);
+                }
+
+                new TlsClientHelloParser().parse(ByteBuffer.wrap(hello));
+            }
+        }
+    }
+
+    private static TlsClientHelloParser parseAll(byte[] hello) {
+        TlsClientHelloParser parser = new TlsClientHelloParser();
+        assertTrue(parser.parse(ByteBuffer.wrap(hello)));
+        assertTrue(parser.isDone());
+        return parser;
+    }
+
+    private static void assertNotClientHello(byte[] hello) {
+        TlsClientHelloParser parser = parseAll(hello);
+        assertNull(parser.getServerName());
+        assertEquals(0, parser.getAlpnProtocols().length);
+    }
+
+}
@@ -0,0 +1,334 @@
+/*
+ * Copyright (C) 2015 XiNGRZ <chenxingyu92@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package me.xingrz.prox.tcp.tunnel;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import junit.framework.TestCase;
+import me.xingrz.prox.logging.FormattingLogger;
+import me.xingrz.prox.logging.FormattingLoggers;
+import me.xingrz.prox.transport.BufferPool;
+
+/**
+ * 分段链表加聚集写的 {@link SendQueue} 和原来的拷贝方式的转发吞吐对比
+ * <p/>
+ * 在本地回环上搭一条 写入线程 → 转发 → 读出线程 的链路，转发在当前线程用一个 Selector 驱动。
+ * 原来的方式读进一块固定的缓冲区后直接写，写不完的部分拷进另一块缓冲区，写完之前不再读；
+ * 现在的方式按 {@link Tunnel} 的做法读进队列的分段，再一次聚集写出去。
+ * <p/>
+ * 读出线程分别用大块和小块去读，后者让写经常写不完，更能体现拷贝的开销。
+ * 只输出吞吐，不设门槛，结果看日志。
+ *
+ * @author XiNGRZ
+ */
+public class SendQueueBenchmark extends TestCase {
+
+    private static final FormattingLogger logger = FormattingLoggers.getLogger("RelayBenchmark");
+
+    private static final int TOTAL = 64 * 1024 * 1024;
+
+    private static final int WRITE_CHUNK = 8192;
+
+    /**
+     * 一种转发方式，从 {@code source} 读，写到 {@code sink}
+     */
+    private interface Relay {
+
+        /**
+         * @return 读到的字节数，-1 表示对端关闭
+         */
+        int onReadable(SocketChannel source, SocketChannel sink) throws IOException;
+
+        void onWritable(SocketChannel sink) throws IOException;
+
+        boolean wantsRead();
+
+        boolean wantsWrite();
+
+        /**
+         * @return 已经写出的字节数
+         */
+        long written();
+
+        void close();
+
+    }
+
+    /**
+     * 按 {@link Tunnel} 的做法，读进 {@link SendQueue} 的分段，马上尝试聚集写
+     */
+    private static class ChainedRelay implements Relay {
+
+        private final SendQueue queue = new SendQueue(BufferPool.getInstance());
+
+        private long written;
+
+        private boolean full;
+
+        @Override
+        public int onReadable(SocketChannel source, SocketChannel sink) throws IOException {
+            ByteBuffer receiving = queue.prepareRead();
+            if (receiving == null) {
+                full = true;
+                return 0;
+            }
+
+            int read = source.read(receiving);
+            queue.finishRead(Math.max(read, 0), read > 0);
+
+            if (read > 0) {
+                onWritable(sink);
+            }
+
+            return read;
+        }
+
+        @Override
+        public void onWritable(SocketChannel sink) throws IOException {
+            written += queue.drainTo(sink);
+            full = false;
+
+            if (queue.isEmpty()) {
+                queue.trim();
+            }
+        }
+
+        @Override
+        public boolean wantsRead() {
+            return !full && queue.size() < SendQueue.CAPACITY * 3 / 4;
+        }
+
+        @Override
+        public boolean wantsWrite() {
+            return !queue.isEmpty();
+        }
+
+        @Override
+        public long written() {
+            return written;
+        }
+
+        @Override
+        public void close() {
+            queue.clear();
+        }
+
+    }
+
+    /**
+     * 原来的做法，读进固定的缓冲区直接写，写不完的拷进另一块缓冲区
+     */
+    private static class CopyingRelay implements Relay {
+
+        private final ByteBuffer receiving = ByteBuffer.allocate(0xFFFF);
+        private final ByteBuffer remaining = ByteBuffer.allocate(0xFFFF);
+
+        private long written;
+
+        CopyingRelay() {
+            remaining.flip();
+        }
+
+        @Override
+        public int onReadable(SocketChannel source, SocketChannel sink) throws IOException {
+            receiving.clear();
+
+            int read = source.read(receiving);
+            if (read <= 0) {
+                return read;
+            }
+
+            receiving.flip();
+            written += write(sink, receiving);
+
+            if (receiving.hasRemaining()) {
+                remaining.clear();
+                remaining.put(receiving);
+                remaining.flip();
+            }
+
+            return read;
+        }
+
+        @Override
+        public void onWritable(SocketChannel sink) throws IOException {
+            written += write(sink, remaining);
+        }
+
+        private static int write(SocketChannel sink, ByteBuffer buffer) throws IOException {
+            int total = 0;
+            int n;
+            while (buffer.hasRemaining() && (n = sink.write(buffer)) > 0) {
+                total += n;
+            }
+            return total;
+        }
+
+        @Override
+        public boolean wantsRead() {
+            return !remaining.hasRemaining();
+        }
+
+        @Override
+        public boolean wantsWrite() {
+            return remaining.hasRemaining();
+        }
+
+        @Override
+        public long written() {
+            return written;
+        }
+
+        @Override
+        public void close() {
+        }
+
+    }
+
+    public void testLargeReads() throws Exception {
+        benchmark(64 * 1024);
+    }
+
+    public void testSmallReads() throws Exception {
+        benchmark(2048);
+    }
+
+    private void benchmark(int readChunk) throws Exception {
+        // 先各跑一遍预热
+        run(new ChainedRelay(), readChunk, TOTAL / 8);
+        run(new CopyingRelay(), readChunk, TOTAL / 8);
+
+        long chained = run(new ChainedRelay(), readChunk, TOTAL);
+        long copying = run(new CopyingRelay(), readChunk, TOTAL);
+
+        logger.d("%d MB with %d bytes reads: %d vs %d MB/s (chained segments vs copying)",
+                TOTAL >> 20, readChunk, throughput(chained), throughput(copying));
+    }
+
+    private static long throughput(long nanos) {
+        return (long) TOTAL * 1000000000L / nanos >> 20;
+    }
+
+    /**
+     * @return 从开始写入到读出线程收完的耗时，纳秒
+     */
+    private long run(Relay relay, final int readChunk, final int total) throws Exception {
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.socket().bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+
+        final SocketChannel feeder = SocketChannel.open(server.socket().getLocalSocketAddress());
+        SocketChannel source = server.accept();
+        SocketChannel sink = SocketChannel.open(server.socket().getLocalSocketAddress());
+        final SocketChannel drainer = server.accept();
+        server.close();
+
+        final long[] received = new long[1];
+
+        Thread feederThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                byte[] chunk = new byte[WRITE_CHUNK];
+                try {
+                    OutputStream out = feeder.socket().getOutputStream();
+                    for (int sent = 0; sent < total; sent += WRITE_CHUNK) {
+                        out.write(chunk, 0, Math.min(WRITE_CHUNK, total - sent));
+                    }
+                    feeder.socket().shutdownOutput();
+                } catch (IOException e) {
+                    logger.w(e, "Feeder failed");
+                }
+            }
+        });
+
+        Thread drainerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                byte[] chunk = new byte[readChunk];
+                try {
+                    InputStream in = drainer.socket().getInputStream();
+                    int read;
+                    while (received[0] < total && (read = in.read(chunk)) > 0) {
+                        received[0] += read;
+                    }
+                } catch (IOException e) {
+                    logger.w(e, "Drainer failed");
+                }
+            }
+        });
+
+        Selector selector = Selector.open();
+
+        try {
+            source.configureBlocking(false);
+            sink.configureBlocking(false);
+
+            SelectionKey sourceKey = source.register(selector, 0);
+            SelectionKey sinkKey = sink.register(selector, 0);
+
+            boolean eof = false;
+
+            long start = System.nanoTime();
+
+            feederThread.start();
+            drainerThread.start();
+
+            while (relay.written() < total) {
+                sourceKey.interestOps(!eof && relay.wantsRead() ? SelectionKey.OP_READ : 0);
+                sinkKey.interestOps(relay.wantsWrite() ? SelectionKey.OP_WRITE : 0);
+
+                selector.select();
+
+                if (sinkKey.isValid() && sinkKey.isWritable()) {
+                    relay.onWritable(sink);
+                }
+
+                if (sourceKey.isValid() && sourceKey.isReadable()) {
+                    eof = relay.onReadable(source, sink) < 0;
+                }
+
+                selector.selectedKeys().clear();
+            }
+
+            drainerThread.join();
+            long elapsed = System.nanoTime() - start;
+
+            feederThread.join();
+
+            assertEquals(total, received[0]);
+            return elapsed;
+        } finally {
+            relay.close();
+            selector.close();
+            feeder.close();
+            source.close();
+            sink.close();
+            drainer.close();
+        }
+    }
+
+}
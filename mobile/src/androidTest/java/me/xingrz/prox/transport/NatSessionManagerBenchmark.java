@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2015 XiNGRZ <chenxingyu92@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package me.xingrz.prox.transport;
+
+import android.util.SparseArray;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+import me.xingrz.prox.logging.FormattingLogger;
+import me.xingrz.prox.logging.FormattingLoggers;
+
+/**
+ * {@link NatSessionManager} 和原来的 {@link SparseArray} 会话表的对比
+ * <p/>
+ * 分别在 60 个、1000 个和表能容纳的最多会话下，测每个数据包都要做的查找，以及会话新建和关闭时的删除加插入。
+ * 原来设想的 60000 个会话已经放不下，映射端口只有 {@link NatSessionManager#MAPPED_PORT_COUNT} 个，
+ * 所以最大一档取表的上限。
+ * <p/>
+ * 只输出每次操作的耗时，不设门槛，结果看日志。
+ *
+ * @author XiNGRZ
+ */
+public class NatSessionManagerBenchmark extends TestCase {
+
+    private static final FormattingLogger logger = FormattingLoggers.getLogger("NatBenchmark");
+
+    private static final int LOOKUPS = 500000;
+    private static final int CHURNS = 50000;
+
+    private static class BenchmarkSession extends AbstractTransportProxy.Session {
+
+        BenchmarkSession(EventLoop loop, int sourcePort, int remoteIp, int remotePort) {
+            super(loop, sourcePort, remoteIp, remotePort);
+        }
+
+        @Override
+        protected FormattingLogger getLogger() {
+            return logger;
+        }
+
+        @Override
+        public void close() {
+        }
+
+    }
+
+    private EventLoop loop;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        loop = new EventLoop("NatBenchmark");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        loop.close();
+        super.tearDown();
+    }
+
+    public void test60Sessions() {
+        benchmark(60);
+    }
+
+    public void test1000Sessions() {
+        benchmark(1000);
+    }
+
+    public void testMaxSessions() {
+        benchmark(NatSessionManager.MAPPED_PORT_COUNT - 1);
+    }
+
+    private void benchmark(int count) {
+        Random random = new Random(count);
+
+        BenchmarkSession[] sessions = new BenchmarkSession[count];
+        long[] keys = new long[count];
+        for (int i = 0; i < count; i++) {
+            sessions[i] = new BenchmarkSession(loop, 1024 + i, random.nextInt(), 443);
+            keys[i] = NatSessionManager.key(1024 + i, sessions[i].getRemoteIp(), 443);
+        }
+
+        int[] order = new int[LOOKUPS];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = random.nextInt(count);
+        }
+
+        // 先各跑一遍预热
+        runTable(count, sessions, keys, order);
+        runSparseArray(count, sessions, order);
+
+        long[] table = runTable(count, sessions, keys, order);
+        long[] sparse = runSparseArray(count, sessions, order);
+
+        logger.d("%d sessions: get %d vs %d ns/op, remove+put %d vs %d ns/op (NatSessionManager vs SparseArray)",
+                count, table[0] / LOOKUPS, sparse[0] / LOOKUPS, table[1] / CHURNS, sparse[1] / CHURNS);
+    }
+
+    /**
+     * @return 查找和删除加插入各自的总耗时，纳秒
+     */
+    private long[] runTable(int count, BenchmarkSession[] sessions, long[] keys, int[] order) {
+        NatSessionManager<BenchmarkSession> manager = new NatSessionManager<>(count);
+        for (int i = 0; i < count; i++) {
+            manager.put(keys[i], sessions[i]);
+        }
+
+        long start = System.nanoTime();
+        for (int index : order) {
+            assertSame(sessions[index], manager.get(keys[index]));
+        }
+
+        long lookup = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < CHURNS; i++) {
+            int index = order[i];
+            manager.remove(keys[index]);
+            manager.put(keys[index], sessions[index]);
+        }
+
+        long churn = System.nanoTime() - start;
+
+        assertEquals(count, manager.size());
+        return new long[]{lookup, churn};
+    }
+
+    /**
+     * 原来的会话表以来源端口为键
+     */
+    private long[] runSparseArray(int count, BenchmarkSession[] sessions, int[] order) {
+        SparseArray<BenchmarkSession> array = new SparseArray<>(count);
+        for (int i = 0; i < count; i++) {
+            array.put(sessions[i].getSourcePort(), sessions[i]);
+        }
+
+        long start = System.nanoTime();
+        for (int index : order) {
+            assertSame(sessions[index], array.get(sessions[index].getSourcePort()));
+        }
+
+        long lookup = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < CHURNS; i++) {
+            BenchmarkSession session = sessions[order[i]];
+            array.delete(session.getSourcePort());
+            array.put(session.getSourcePort(), session);
+        }
+
+        long churn = System.nanoTime() - start;
+
+        assertEquals(count, array.size());
+        return new long[]{lookup, churn};
+    }
+
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2015 XiNGRZ <chenxingyu92@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package me.xingrz.prox.transport;
+
+import java.io.IOException;
+import java.nio.channels.Pipe;
+import java.nio.channels.Selector;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import junit.framework.TestCase;
+import me.xingrz.prox.logging.FormattingLogger;
+import me.xingrz.prox.logging.FormattingLoggers;
+
+/**
+ * 会话表的并发压力测试
+ * <p/>
+ * 测试线程扮演 VPN 线程，独占会话表，不停地新建、查找、完成会话；另外几个线程扮演事件循环，
+ * 同时以映射端口无锁地反查会话，并随机要求移除。会话数上限很小，所以 LRU 淘汰也一直在发生。
+ * <p/>
+ * 反查到的会话必须正是映射到这个端口的那个，VPN 线程也不能拿到已经被要求移除的会话。
+ *
+ * @author XiNGRZ
+ */
+public class NatSessionStressTest extends TestCase {
+
+    private static final int MAX_SESSIONS = 60;
+    private static final int LOOKUP_THREADS = 2;
+    private static final long DURATION_MS = TimeUnit.SECONDS.toMillis(3);
+
+    private static class StressSession extends AbstractTransportProxy.Session {
+
+        volatile boolean closed;
+
+        StressSession(EventLoop loop, int sourcePort, int remoteIp, int remotePort) {
+            super(loop, sourcePort, remoteIp, remotePort);
+        }
+
+        @Override
+        protected FormattingLogger getLogger() {
+            return FormattingLoggers.getLogger("StressSession");
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+
+    }
+
+    private static class StressProxy extends AbstractTransportProxy<Pipe.SourceChannel, StressSession> {
+
+        StressProxy() {
+            super(MAX_SESSIONS, TimeUnit.MINUTES.toMillis(10));
+        }
+
+        @Override
+        protected FormattingLogger getLogger() {
+            return FormattingLoggers.getLogger("StressProxy");
+        }
+
+        @Override
+        protected Pipe.SourceChannel createChannel(Selector selector) throws IOException {
+            Pipe.SourceChannel channel = Pipe.open().source();
+            channel.configureBlocking(false);
+            return channel;
+        }
+
+        @Override
+        public int port() {
+            return 0;
+        }
+
+        @Override
+        protected StressSession createSession(int sourcePort, int remoteIp, int remotePort) {
+            return new StressSession(runner.worker(sourcePort), sourcePort, remoteIp, remotePort);
+        }
+
+    }
+
+    private TransportProxyRunner runner;
+    private StressProxy proxy;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        runner = new TransportProxyRunner(2);
+        proxy = new StressProxy();
+        proxy.start(runner);
+        runner.start();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        runner.close();
+        proxy.close();
+        super.tearDown();
+    }
+
+    public void testConcurrentPickAndRelease() throws Exception {
+        final AtomicBoolean stop = new AtomicBoolean();
+        final AtomicLong found = new AtomicLong();
+        final AtomicLong mismatches = new AtomicLong();
+
+        Thread[] lookups = new Thread[LOOKUP_THREADS];
+        for (int i = 0; i < lookups.length; i++) {
+            final Random random = new Random(i);
+            lookups[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    while (!stop.get()) {
+                        int mappedPort = NatSessionManager.MAPPED_PORT_MIN
+                                + random.nextInt(NatSessionManager.MAPPED_PORT_COUNT);
+
+                        StressSession session = proxy.findSession(mappedPort);
+                        if (session == null) {
+                            continue;
+                        }
+
+                        found.incrementAndGet();
+
+                        if (session.getMappedPort() != mappedPort) {
+                            mismatches.incrementAndGet();
+                        }
+
+                        if (random.nextInt(4) == 0) {
+                            proxy.releaseSession(session);
+                        }
+                    }
+                }
+            }, "StressLookup-" + i);
+            lookups[i].start();
+        }
+
+        Random random = new Random(42);
+        long picks = 0;
+        long stale = 0;
+        long deadline = System.currentTimeMillis() + DURATION_MS;
+
+        try {
+            while (System.currentTimeMillis() < deadline) {
+                StressSession session = proxy.pickSession(random.nextInt(50) + 1024,
+                        random.nextInt(10), random.nextBoolean() ? 80 : 443);
+                picks++;
+
+                if (session.closed && !session.released) {
+                    stale++;
+                }
+
+                StressSession mapped = proxy.getSession(session.getMappedPort());
+                if (mapped != null && mapped != session) {
+                    mismatches.incrementAndGet();
+                }
+
+                if (random.nextInt(5) == 0) {
+                    proxy.finishSession(session.getMappedPort());
+                }
+            }
+        } finally {
+            stop.set(true);
+            for (Thread lookup : lookups) {
+                lookup.join();
+            }
+        }
+
+        assertTrue("No session was ever looked up from the other threads", found.get() > 0);
+        assertEquals("Sessions mapped to the wrong port", 0, mismatches.get());
+        assertEquals("Picked closed sessions", 0, stale);
+
+        // 停下来以后，表里剩下的会话都必须还能从它自己的映射端口查到
+        int remaining = 0;
+        for (int i = 0; i < NatSessionManager.MAPPED_PORT_COUNT; i++) {
+            int mappedPort = NatSessionManager.MAPPED_PORT_MIN + i;
+            StressSession session = proxy.getSession(mappedPort);
+            if (session != null) {
+                assertEquals(mappedPort, session.getMappedPort());
+                assertFalse(session.closed);
+                remaining++;
+            }
+        }
+
+        assertTrue("Session count exceeds the cap: " + remaining, remaining <= MAX_SESSIONS);
+        assertTrue(picks > 0);
+    }
+
+}
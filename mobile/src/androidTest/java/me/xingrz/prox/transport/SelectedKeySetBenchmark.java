@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2015 XiNGRZ <chenxingyu92@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package me.xingrz.prox.transport;
+
+import java.io.IOException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+
+import junit.framework.TestCase;
+import me.xingrz.prox.logging.FormattingLogger;
+import me.xingrz.prox.logging.FormattingLoggers;
+
+/**
+ * 反射装入的 {@link SelectedKeySet} 和 Selector 自带的 {@code HashSet} 的对比
+ * <p/>
+ * 注册几千个总是可写的 UDP 通道，每一轮都全部就绪，按 {@link EventLoop} 的两种遍历方式测每轮 select 加处理的耗时，
+ * 以及平均到每个就绪 key 的耗时。有的实现一次 select 最多只取回一部分事件，所以每轮实际处理的 key 数以返回的为准。
+ * 每个通道占一个文件描述符，最大一档在文件描述符上限较低的系统上可能打不开。
+ * <p/>
+ * 只输出每轮的耗时，不设门槛，结果看日志。运行时不支持替换时跳过。
+ *
+ * @author XiNGRZ
+ */
+public class SelectedKeySetBenchmark extends TestCase {
+
+    private static final FormattingLogger logger = FormattingLoggers.getLogger("SelectBenchmark");
+
+    private static final int ROUNDS = 2000;
+
+    public void test1000Keys() throws IOException {
+        benchmark(1000);
+    }
+
+    public void test4000Keys() throws IOException {
+        benchmark(4000);
+    }
+
+    private void benchmark(int count) throws IOException {
+        Selector plain = Selector.open();
+        Selector installed = Selector.open();
+        DatagramChannel[] channels = new DatagramChannel[count];
+
+        try {
+            SelectedKeySet keySet = SelectedKeySet.install(installed);
+            if (keySet == null) {
+                logger.w("SelectedKeySet is not supported by %s, skipped", installed.getClass().getName());
+                return;
+            }
+
+            for (int i = 0; i < count; i++) {
+                channels[i] = DatagramChannel.open();
+                channels[i].configureBlocking(false);
+                channels[i].register(plain, SelectionKey.OP_WRITE);
+                channels[i].register(installed, SelectionKey.OP_WRITE);
+            }
+
+            // 先各跑一遍预热
+            runSelectedKeySet(installed, keySet);
+            runHashSet(plain);
+
+            long[] array = runSelectedKeySet(installed, keySet);
+            long[] hash = runHashSet(plain);
+
+            logger.d("%d ready keys: %d vs %d us/select, %d vs %d ns/key (SelectedKeySet vs HashSet)",
+                    count, array[0] / ROUNDS / 1000, hash[0] / ROUNDS / 1000,
+                    array[0] / array[1], hash[0] / hash[1]);
+        } finally {
+            for (DatagramChannel channel : channels) {
+                if (channel != null) {
+                    channel.close();
+                }
+            }
+
+            plain.close();
+            installed.close();
+        }
+    }
+
+    /**
+     * @return 总耗时，纳秒，以及处理过的 key 的总数
+     */
+    private long[] runSelectedKeySet(Selector selector, SelectedKeySet keySet) throws IOException {
+        int ops = 0;
+        long selected = 0;
+
+        long start = System.nanoTime();
+        for (int round = 0; round < ROUNDS; round++) {
+            selector.selectNow();
+
+            for (int i = 0; i < keySet.size(); i++) {
+                ops |= keySet.get(i).readyOps();
+            }
+
+            selected += keySet.size();
+            keySet.reset();
+        }
+
+        long elapsed = System.nanoTime() - start;
+
+        assertEquals(SelectionKey.OP_WRITE, ops);
+        return new long[]{elapsed, selected};
+    }
+
+    private long[] runHashSet(Selector selector) throws IOException {
+        int ops = 0;
+        long selected = 0;
+
+        long start = System.nanoTime();
+        for (int round = 0; round < ROUNDS; round++) {
+            selector.selectNow();
+
+            Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+            while (iterator.hasNext()) {
+                SelectionKey key = iterator.next();
+                iterator.remove();
+                ops |= key.readyOps();
+                selected++;
+            }
+        }
+
+        long elapsed = System.nanoTime() - start;
+
+        assertEquals(SelectionKey.OP_WRITE, ops);
+        return new long[]{elapsed, selected};
+    }
+
+}
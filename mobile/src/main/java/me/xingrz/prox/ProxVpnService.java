@@ -26,27 +26,25 @@ import com.crashlytics.android.Crashlytics;
 
 import org.apache.commons.io.IOUtils;
 
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 
-import me.xingrz.prox.internet.IPHeader;
-import me.xingrz.prox.internet.IPv4Header;
+import me.xingrz.prox.internet.IpPacket;
 import me.xingrz.prox.internet.IpUtils;
 import me.xingrz.prox.logging.FormattingLogger;
 import me.xingrz.prox.logging.FormattingLoggers;
 import me.xingrz.prox.pac.AutoConfigManager;
-import me.xingrz.prox.tcp.TcpHeader;
 import me.xingrz.prox.tcp.TcpProxy;
 import me.xingrz.prox.tcp.TcpProxySession;
 import me.xingrz.prox.transport.TransportProxyRunner;
-import me.xingrz.prox.udp.UdpHeader;
+import me.xingrz.prox.tun.PacketBuffer;
+import me.xingrz.prox.tun.TunInterface;
 import me.xingrz.prox.udp.UdpProxy;
 import me.xingrz.prox.udp.UdpProxySession;
 
-public class ProxVpnService extends VpnService implements Runnable, AutoConfigManager.ConfigLoadCallback {
+public class ProxVpnService extends VpnService implements Runnable,
+        AutoConfigManager.ConfigLoadCallback, TunInterface.PacketHandler {
 
     private static final FormattingLogger logger = FormattingLoggers.getContextLogger();
 
@@ -69,6 +67,14 @@ public class ProxVpnService extends VpnService implements Runnable, AutoConfigMa
      */
     public static final InetAddress FAKE_CLIENT_ADDRESS = getAddressQuietly("10.80.7.20");
 
+    private static final int PROXY_IP = IpUtils.toInteger(PROXY_ADDRESS);
+    private static final int FAKE_CLIENT_IP = IpUtils.toInteger(FAKE_CLIENT_ADDRESS);
+
+    /**
+     * VPN 接口的 MTU，同时也是 TUN 读写槽位的大小
+     */
+    private static final int MTU = 1500;
+
 
     private static ProxVpnService instance;
 
@@ -85,15 +91,9 @@ public class ProxVpnService extends VpnService implements Runnable, AutoConfigMa
     private Thread thread;
 
     private ParcelFileDescriptor intf;
-    private FileOutputStream ingoing;
+    private TunInterface tun;
 
-    private byte[] packet;
-
-    private IPHeader ipHeader;
-    private IPv4Header iPv4Header;
-
-    private TcpHeader tcpHeader;
-    private UdpHeader udpHeader;
+    private IpPacket ipPacket;
 
     private TransportProxyRunner proxyRunner;
 
@@ -109,13 +109,7 @@ public class ProxVpnService extends VpnService implements Runnable, AutoConfigMa
 
         thread = new Thread(this, "VpnServer");
 
-        packet = new byte[0xFFFF];
-
-        ipHeader = new IPHeader(packet);
-        iPv4Header = new IPv4Header(packet);
-
-        tcpHeader = new TcpHeader(packet);
-        udpHeader = new UdpHeader(packet);
+        ipPacket = new IpPacket();
 
         AutoConfigManager.createInstance();
     }
@@ -167,10 +161,8 @@ public class ProxVpnService extends VpnService implements Runnable, AutoConfigMa
     public void run() {
         logger.d("VPN service started");
 
-        FileInputStream outgoing = null;
-
         try {
-            proxyRunner = new TransportProxyRunner();
+            proxyRunner = new TransportProxyRunner(Runtime.getRuntime().availableProcessors());
 
             tcpProxy = proxyRunner.create(TcpProxy.class);
             logger.d("TCP proxy started");
@@ -183,11 +175,11 @@ public class ProxVpnService extends VpnService implements Runnable, AutoConfigMa
             intf = establish();
             logger.d("VPN interface established");
 
-            ingoing = new FileOutputStream(intf.getFileDescriptor());
-            outgoing = new FileInputStream(intf.getFileDescriptor());
+            // 多核设备上读写分开两条线程，避免写回阻塞读取
+            tun = new TunInterface(intf.getFileDescriptor(), MTU,
+                    Runtime.getRuntime().availableProcessors() > 1);
 
-            int size;
-            while (running && (size = outgoing.read(packet)) != -1) {
+            while (running && tun.drain(this)) {
                 if (!tcpProxy.isRunning()) {
                     logger.e("TCP proxy unexpectedly stopped");
                     break;
@@ -197,24 +189,23 @@ public class ProxVpnService extends VpnService implements Runnable, AutoConfigMa
                     logger.e("UDP proxy unexpectedly stopped");
                     break;
                 }
-
-                if (size > 0) {
-                    onIPPacketReceived(size);
-                }
             }
 
             logger.d("VPN thread finished");
         } catch (IOException e) {
             logger.w(e, "VPN ended with exception");
         } finally {
-            IOUtils.closeQuietly(outgoing);
-            IOUtils.closeQuietly(ingoing);
+            IOUtils.closeQuietly(tun);
 
             IOUtils.closeQuietly(intf);
 
             IOUtils.closeQuietly(tcpProxy);
             IOUtils.closeQuietly(udpProxy);
 
+            if (proxyRunner != null) {
+                proxyRunner.logLoad();
+            }
+
             IOUtils.closeQuietly(proxyRunner);
 
             logger.d("Cleaned up");
@@ -223,51 +214,55 @@ public class ProxVpnService extends VpnService implements Runnable, AutoConfigMa
 
     private ParcelFileDescriptor establish() {
         return new Builder()
+                .setMtu(MTU)
                 .addAddress(PROXY_ADDRESS, 24)
                 .addRoute("0.0.0.0", 0)
                 .establish();
     }
 
-    private void onIPPacketReceived(int size) throws IOException {
-        if (ipHeader.version() == IPHeader.VERSION_4) {
-            onIPv4PacketReceived(size);
-        }
-    }
-
-    private void onIPv4PacketReceived(int size) throws IOException {
-        if (iPv4Header.totalLength() != size) {
-            logger.w("Ignored IP packet with wrong length");
-            return;
+    /**
+     * 收到 TUN 的数据包
+     *
+     * @param packet 数据包
+     * @return 是否需要把改写后的包写回 TUN
+     */
+    @Override
+    public boolean onPacketReceived(PacketBuffer packet) throws IOException {
+        if (!ipPacket.parse(packet.array(), packet.length())) {
+            return false;
         }
 
-        switch (iPv4Header.protocol()) {
-            case IPHeader.PROTOCOL_TCP:
-                onTCPPacketReceived();
-                break;
-            case IPHeader.PROTOCOL_UDP:
-                onUDPPacketReceived();
-                break;
+        switch (ipPacket.protocol()) {
+            case IpPacket.PROTOCOL_TCP:
+                return onTCPPacketReceived(ipPacket);
+            case IpPacket.PROTOCOL_UDP:
+                return onUDPPacketReceived(ipPacket);
+            default:
+                return false;
         }
     }
 
-    private void onTCPPacketReceived() throws IOException {
-        if (tcpHeader.getSourceIp() != IpUtils.toInteger(PROXY_ADDRESS)) {
-            return;
+    private boolean onTCPPacketReceived(IpPacket packet) throws IOException {
+        if (packet.getSourceIp() != PROXY_IP) {
+            return false;
         }
 
-        if (tcpHeader.getSourcePort() == tcpProxy.port()) {
+        if (packet.getSourcePort() == tcpProxy.port()) {
             // 如果是来自本地 TCP 代理，表示是从隧道回来的包，回写给 VPN
 
-            TcpProxySession session = tcpProxy.getSession(tcpHeader.getDestinationPort());
+            // 目标端口是会话的映射端口
+            int mappedPort = packet.getDestinationPort();
+
+            TcpProxySession session = tcpProxy.getSession(mappedPort);
             if (session == null) {
-                return;
+                return false;
             }
 
             session.active();
 
-            if (tcpHeader.fin()) {
-                session.finish();
-                tcpProxy.finishSession(tcpHeader.getDestinationPort());
+            // 只是这个方向结束了，另一个方向可能还在传输，由会话自己判断什么时候完成
+            if (packet.fin() || packet.rst()) {
+                tcpProxy.onFin(session, false, packet.rst());
             }
 
             // 因为 TCP 是传输层协议，而我们的 VPN 是工作在网络层的
@@ -275,59 +270,73 @@ public class ProxVpnService extends VpnService implements Runnable, AutoConfigMa
             // 再用工作在传输层的 TCPProxy 接收，随后再转发到外网
             // 反之亦然
 
-            tcpHeader.setSourceIp(session.getRemoteAddress());
-            tcpHeader.setSourcePort(session.getRemotePort());
-            tcpHeader.setDestinationIp(PROXY_ADDRESS);
-            tcpHeader.recomputeChecksum();
-            tcpHeader.writeTo(ingoing);
+            packet.setSourceIp(session.getRemoteIp());
+            packet.setSourcePort(session.getRemotePort());
+            packet.setDestinationIp(PROXY_IP);
+            packet.setDestinationPort(session.getSourcePort());
+            return true;
         } else {
             // 否则是即将发往公网的数据包，将它转发给我们的 TCP 代理
-            TcpProxySession session = tcpProxy.pickSession(tcpHeader.getSourcePort(),
-                    tcpHeader.getDestinationIpAddress(), tcpHeader.getDestinationPort());
+            TcpProxySession session = tcpProxy.pickSession(packet.getSourcePort(),
+                    packet.getDestinationIp(), packet.getDestinationPort(),
+                    packet.syn() && !packet.ack());
 
             session.active();
 
-            tcpHeader.setSourceIp(FAKE_CLIENT_ADDRESS);
-            tcpHeader.setDestinationIp(PROXY_ADDRESS);
-            tcpHeader.setDestinationPort(tcpProxy.port());
-            tcpHeader.recomputeChecksum();
-            tcpHeader.writeTo(ingoing);
+            if (packet.fin() || packet.rst()) {
+                tcpProxy.onFin(session, true, packet.rst());
+            }
+
+            // 以映射端口作为来源端口，同一来源端口连往不同目标的连接在代理那边也不会撞上
+            packet.setSourceIp(FAKE_CLIENT_IP);
+            packet.setSourcePort(session.getMappedPort());
+            packet.setDestinationIp(PROXY_IP);
+            packet.setDestinationPort(tcpProxy.port());
+            return true;
         }
     }
 
-    private void onUDPPacketReceived() throws IOException {
-        if (udpHeader.getSourceIp() != IpUtils.toInteger(PROXY_ADDRESS)) {
-            return;
+    private boolean onUDPPacketReceived(IpPacket packet) throws IOException {
+        if (packet.getSourceIp() != PROXY_IP) {
+            return false;
         }
 
-        if (udpHeader.getDestinationIp() == IpUtils.toInteger(FAKE_CLIENT_ADDRESS)) {
+        if (packet.getDestinationIp() == FAKE_CLIENT_IP) {
             // UDP 代理丢回给 VPN 的
 
-            UdpProxySession session = udpProxy.finishSession(udpHeader.getDestinationPort());
+            int mappedPort = packet.getDestinationPort();
+
+            UdpProxySession session = udpProxy.getSession(mappedPort);
             if (session == null) {
-                return;
+                return false;
             }
 
-            udpHeader.setSourceIp(session.getRemoteAddress());
-            udpHeader.setSourcePort(session.getRemotePort());
-            udpHeader.setDestinationIp(PROXY_ADDRESS);
-            udpHeader.recomputeChecksum();
-            udpHeader.writeTo(ingoing);
+            session.active();
+
+            // 一问一答的会话（比如 DNS）收到回应就可以结束了，其他的留到空闲过期
+            if (session.isFinished()) {
+                udpProxy.finishSession(mappedPort);
+            }
+
+            packet.setSourceIp(session.getRemoteIp());
+            packet.setSourcePort(session.getRemotePort());
+            packet.setDestinationIp(PROXY_IP);
+            packet.setDestinationPort(session.getSourcePort());
+            return true;
         } else {
             // 发出去前被 VPN 截获的
 
-            // 创建会话，让 UDP 代理服务器先准备好好外网端的通道
-            UdpProxySession session = udpProxy.pickSession(udpHeader.getSourcePort(),
-                    udpHeader.getDestinationIpAddress(), udpHeader.getDestinationPort());
+            // 找到或创建会话，让 UDP 代理服务器先准备好好外网端的通道
+            UdpProxySession session = udpProxy.pickSession(packet.getSourcePort(),
+                    packet.getDestinationIp(), packet.getDestinationPort());
 
-            // 保护外网端通道不被 VPN 拦截
-            protect(session.socket());
+            session.active();
 
-            udpHeader.setSourceIp(FAKE_CLIENT_ADDRESS);
-            udpHeader.setDestinationIp(PROXY_ADDRESS);
-            udpHeader.setDestinationPort(udpProxy.port());
-            udpHeader.recomputeChecksum();
-            udpHeader.writeTo(ingoing);
+            packet.setSourceIp(FAKE_CLIENT_IP);
+            packet.setSourcePort(session.getMappedPort());
+            packet.setDestinationIp(PROXY_IP);
+            packet.setDestinationPort(udpProxy.port());
+            return true;
         }
     }
 
@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2015 XiNGRZ <chenxingyu92@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package me.xingrz.prox.internet;
+
+/**
+ * Internet Checksum
+ *
+ * @author XiNGRZ
+ * @see <a href="http://tools.ietf.org/html/rfc1071">RFC1071 Computing the Internet Checksum</a>
+ * @see <a href="http://tools.ietf.org/html/rfc1624">RFC1624 Incremental Internet Checksum</a>
+ */
+public class Checksum {
+
+    /**
+     * 完整计算一段数据的 Checksum，只遍历一遍
+     *
+     * @param sum    初始累加值，比如伪首部
+     * @param data   数据
+     * @param offset 起始偏移
+     * @param length 长度
+     * @return 16 位 Checksum
+     */
+    public static int compute(long sum, byte[] data, int offset, int length) {
+        int end = offset + (length & ~1);
+
+        for (int i = offset; i < end; i += 2) {
+            sum += ((data[i] << 8) & 0xFF00) | (data[i + 1] & 0x00FF);
+        }
+
+        // 奇数长度时最后一个字节补零
+        if ((length & 1) != 0) {
+            sum += (data[end] << 8) & 0xFF00;
+        }
+
+        while ((sum >> 16) > 0) {
+            sum = (sum >> 16) + (sum & 0xFFFF);
+        }
+
+        return (int) (~sum & 0xFFFF);
+    }
+
+    /**
+     * 一个 16 位字段由 {@code oldValue} 改为 {@code newValue} 后，增量更新 Checksum
+     * HC' = ~(~HC + ~m + m')
+     *
+     * @param checksum 原 Checksum
+     * @param oldValue 字段原值
+     * @param newValue 字段新值
+     * @return 新 Checksum
+     */
+    public static int update(int checksum, int oldValue, int newValue) {
+        int sum = (~checksum & 0xFFFF) + (~oldValue & 0xFFFF) + (newValue & 0xFFFF);
+        sum = (sum >> 16) + (sum & 0xFFFF);
+        sum += sum >> 16;
+        return ~sum & 0xFFFF;
+    }
+
+    /**
+     * 一个 32 位字段（比如 IP 地址）改变后，增量更新 Checksum
+     *
+     * @param checksum 原 Checksum
+     * @param oldValue 字段原值
+     * @param newValue 字段新值
+     * @return 新 Checksum
+     */
+    public static int update32(int checksum, int oldValue, int newValue) {
+        int sum = (~checksum & 0xFFFF)
+                + (~oldValue >>> 16) + (~oldValue & 0xFFFF)
+                + (newValue >>> 16) + (newValue & 0xFFFF);
+        sum = (sum >> 16) + (sum & 0xFFFF);
+        sum += sum >> 16;
+        return ~sum & 0xFFFF;
+    }
+
+}
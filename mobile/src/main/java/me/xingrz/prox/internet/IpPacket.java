@@ -0,0 +1,309 @@
+/*
+ * Copyright (C) 2015 XiNGRZ <chenxingyu92@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package me.xingrz.prox.internet;
+
+/**
+ * IPv4 TCP/UDP 数据包描述
+ * <p/>
+ * 每个包只在 {@link #parse(byte[], int)} 时解码一次版本、首部长度、协议、地址与端口，之后全部从字段读取，
+ * 改写时同时更新数据包和字段。整个过程不分配任何对象，一个实例可以反复用于不同的数据包。
+ * <p/>
+ * 改写地址和端口时按 RFC1624 增量更新 IP 首部和传输层的 Checksum，代价与负载长度无关；
+ * 只有需要校验时才用 {@link #isChecksumValid()} 完整计算。
+ *
+ * @author XiNGRZ
+ * @see <a href="https://en.wikipedia.org/wiki/IPv4#Header">IPv4 首部结构</a>
+ * @see <a href="https://en.wikipedia.org/wiki/Transmission_Control_Protocol#TCP_segment_structure">TCP 包结构</a>
+ * @see <a href="https://en.wikipedia.org/wiki/User_Datagram_Protocol#Packet_structure">UDP 包结构</a>
+ */
+public class IpPacket {
+
+    public static final int VERSION_4 = 4;
+    public static final int VERSION_6 = 6;
+
+    /**
+     * 协议代码
+     * http://www.iana.org/assignments/protocol-numbers
+     */
+
+    public static final int PROTOCOL_TCP = 6;
+    public static final int PROTOCOL_UDP = 17;
+
+    private static final int IP_MIN_HEADER_LENGTH = 20;
+    private static final int TCP_MIN_HEADER_LENGTH = 20;
+    private static final int UDP_HEADER_LENGTH = 8;
+
+    private static final int TCP_FLAG_ACK = 0x10;
+    private static final int TCP_FLAG_PSH = 0x08;
+    private static final int TCP_FLAG_RST = 0x04;
+    private static final int TCP_FLAG_SYN = 0x02;
+    private static final int TCP_FLAG_FIN = 0x01;
+
+    private byte[] packet;
+
+    private int ipHeaderLength;
+    private int totalLength;
+    private int protocol;
+
+    private int sourceIp;
+    private int destinationIp;
+
+    private int sourcePort;
+    private int destinationPort;
+
+    private int tcpFlags;
+
+    private int transportChecksumOffset;
+
+    /**
+     * 解析数据包，只支持 IPv4 上的 TCP 和 UDP
+     *
+     * @param packet 数据包
+     * @param length 实际读到的长度
+     * @return {@code false} 表示不支持或格式错误，此时其他方法的返回值没有意义
+     */
+    public boolean parse(byte[] packet, int length) {
+        this.packet = packet;
+
+        if (length < IP_MIN_HEADER_LENGTH) {
+            return false;
+        }
+
+        if (((packet[0] >> 4) & 0xf) != VERSION_4) {
+            return false;
+        }
+
+        ipHeaderLength = (packet[0] & 0xf) * 4;
+        totalLength = NumericUtils.readShort(packet, 2);
+
+        if (ipHeaderLength < IP_MIN_HEADER_LENGTH || totalLength != length) {
+            return false;
+        }
+
+        protocol = packet[9] & 0xff;
+
+        switch (protocol) {
+            case PROTOCOL_TCP:
+                if (length < ipHeaderLength + TCP_MIN_HEADER_LENGTH) {
+                    return false;
+                }
+                tcpFlags = packet[ipHeaderLength + 13] & 0xff;
+                transportChecksumOffset = ipHeaderLength + 16;
+                break;
+            case PROTOCOL_UDP:
+                if (length < ipHeaderLength + UDP_HEADER_LENGTH) {
+                    return false;
+                }
+                tcpFlags = 0;
+                transportChecksumOffset = ipHeaderLength + 6;
+                break;
+            default:
+                return false;
+        }
+
+        sourceIp = NumericUtils.readInt(packet, 12);
+        destinationIp = NumericUtils.readInt(packet, 16);
+
+        sourcePort = NumericUtils.readShort(packet, ipHeaderLength);
+        destinationPort = NumericUtils.readShort(packet, ipHeaderLength + 2);
+
+        return true;
+    }
+
+    /**
+     * @return IP 包头部长度
+     */
+    public int ipHeaderLength() {
+        return ipHeaderLength;
+    }
+
+    /**
+     * @return IP 包总长度
+     */
+    public int totalLength() {
+        return totalLength;
+    }
+
+    /**
+     * @return 协议
+     */
+    public int protocol() {
+        return protocol;
+    }
+
+    public int getSourceIp() {
+        return sourceIp;
+    }
+
+    public void setSourceIp(int ip) {
+        NumericUtils.writeInt(packet, 12, ip);
+        updateIpChecksum(sourceIp, ip);
+        sourceIp = ip;
+    }
+
+    public int getDestinationIp() {
+        return destinationIp;
+    }
+
+    public void setDestinationIp(int ip) {
+        NumericUtils.writeInt(packet, 16, ip);
+        updateIpChecksum(destinationIp, ip);
+        destinationIp = ip;
+    }
+
+    public int getSourcePort() {
+        return sourcePort;
+    }
+
+    public void setSourcePort(int port) {
+        NumericUtils.writeShort(packet, ipHeaderLength, port);
+        updateTransportChecksum(sourcePort, port);
+        sourcePort = port;
+    }
+
+    public int getDestinationPort() {
+        return destinationPort;
+    }
+
+    public void setDestinationPort(int port) {
+        NumericUtils.writeShort(packet, ipHeaderLength + 2, port);
+        updateTransportChecksum(destinationPort, port);
+        destinationPort = port;
+    }
+
+    public boolean ack() {
+        return (tcpFlags & TCP_FLAG_ACK) == TCP_FLAG_ACK;
+    }
+
+    public boolean psh() {
+        return (tcpFlags & TCP_FLAG_PSH) == TCP_FLAG_PSH;
+    }
+
+    public boolean rst() {
+        return (tcpFlags & TCP_FLAG_RST) == TCP_FLAG_RST;
+    }
+
+    public boolean syn() {
+        return (tcpFlags & TCP_FLAG_SYN) == TCP_FLAG_SYN;
+    }
+
+    public boolean fin() {
+        return (tcpFlags & TCP_FLAG_FIN) == TCP_FLAG_FIN;
+    }
+
+    /**
+     * IP 地址改变后增量更新 Checksum，地址同时属于 IP 首部和传输层的伪首部
+     */
+    private void updateIpChecksum(int oldIp, int newIp) {
+        if (oldIp == newIp) {
+            return;
+        }
+
+        int ipChecksum = NumericUtils.readShort(packet, 10);
+        NumericUtils.writeShort(packet, 10, Checksum.update32(ipChecksum, oldIp, newIp));
+
+        int checksum = NumericUtils.readShort(packet, transportChecksumOffset);
+        if (hasTransportChecksum(checksum)) {
+            writeTransportChecksum(Checksum.update32(checksum, oldIp, newIp));
+        }
+    }
+
+    /**
+     * 端口改变后增量更新传输层 Checksum
+     */
+    private void updateTransportChecksum(int oldPort, int newPort) {
+        if (oldPort == newPort) {
+            return;
+        }
+
+        int checksum = NumericUtils.readShort(packet, transportChecksumOffset);
+        if (hasTransportChecksum(checksum)) {
+            writeTransportChecksum(Checksum.update(checksum, oldPort, newPort));
+        }
+    }
+
+    /**
+     * IPv4 上的 UDP Checksum 为 0 表示发送方没有计算，不需要更新
+     */
+    private boolean hasTransportChecksum(int checksum) {
+        return protocol == PROTOCOL_TCP || checksum != 0;
+    }
+
+    private void writeTransportChecksum(int checksum) {
+        // UDP 中计算结果为 0 时要写成 0xFFFF，以免被当成没有 Checksum
+        if (protocol == PROTOCOL_UDP && checksum == 0) {
+            checksum = 0xFFFF;
+        }
+
+        NumericUtils.writeShort(packet, transportChecksumOffset, checksum);
+    }
+
+    private long pseudoHeaderSum() {
+        long pseudo = 0;
+        pseudo += sourceIp & 0xffff;
+        pseudo += (sourceIp >>> 16) & 0xffff;
+        pseudo += destinationIp & 0xffff;
+        pseudo += (destinationIp >>> 16) & 0xffff;
+        pseudo += protocol;
+        pseudo += totalLength - ipHeaderLength;
+        return pseudo;
+    }
+
+    /**
+     * 完整校验 IP 首部和传输层的 Checksum
+     *
+     * @return 是否正确
+     */
+    public boolean isChecksumValid() {
+        if (Checksum.compute(0, packet, 0, ipHeaderLength) != 0) {
+            return false;
+        }
+
+        int checksum = NumericUtils.readShort(packet, transportChecksumOffset);
+        if (!hasTransportChecksum(checksum)) {
+            return true;
+        }
+
+        return Checksum.compute(pseudoHeaderSum(), packet,
+                ipHeaderLength, totalLength - ipHeaderLength) == 0;
+    }
+
+    /**
+     * 完整地重新计算并覆盖 IP 首部和传输层的 Checksum
+     * 改写字段时已经增量更新过了，一般不需要调用
+     */
+    public void recomputeChecksum() {
+        NumericUtils.writeShort(packet, 10, 0);
+        NumericUtils.writeShort(packet, 10, Checksum.compute(0, packet, 0, ipHeaderLength));
+
+        NumericUtils.writeShort(packet, transportChecksumOffset, 0);
+        writeTransportChecksum(Checksum.compute(pseudoHeaderSum(), packet,
+                ipHeaderLength, totalLength - ipHeaderLength));
+    }
+
+    @Override
+    public String toString() {
+        return String.format("IPv4[headerLen:%s, totalLen:%s, protocol:%s, src:%s:%d, dst:%s:%d, flags:%02x]",
+                ipHeaderLength, totalLength, protocol,
+                IpUtils.toString(sourceIp), sourcePort,
+                IpUtils.toString(destinationIp), destinationPort,
+                tcpFlags);
+    }
+
+}
@@ -19,6 +19,7 @@
 package me.xingrz.prox.internet;
 
 import java.net.InetAddress;
+import java.net.UnknownHostException;
 
 public class IpUtils {
 
@@ -34,4 +35,16 @@ public class IpUtils {
         return NumericUtils.readInt(address.getAddress(), 0);
     }
 
+    public static InetAddress toInetAddress(int ip) {
+        byte[] address = new byte[4];
+        NumericUtils.writeInt(address, 0, ip);
+
+        try {
+            return InetAddress.getByAddress(address);
+        } catch (UnknownHostException e) {
+            // 只有长度不对才会抛出
+            return null;
+        }
+    }
+
 }
@@ -23,6 +23,7 @@ import android.os.Handler;
 import android.os.HandlerThread;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.util.concurrent.TimeUnit;
 
 import me.xingrz.prox.logging.FormattingLogger;
@@ -50,7 +51,13 @@ public class AutoConfigManager {
     }
 
     public static interface ProxyLookupCallback {
-        public void onProxyLookup(Uri proxy);
+        /**
+         * 在 PAC 线程回调
+         *
+         * @param proxy   代理，直连时为 {@code null}
+         * @param address 已经在 PAC 线程解析好的代理地址，直连时为 {@code null}
+         */
+        public void onProxyLookup(Uri proxy, InetSocketAddress address);
     }
 
 
@@ -82,7 +89,12 @@ public class AutoConfigManager {
 
     private AutoConfig autoConfig;
 
-    private Uri lastUsedProxy;
+    private volatile Uri lastUsedProxy;
+
+    /**
+     * {@link #lastUsedProxy} 解析后的地址，代理主机名只在 PAC 线程解析，不拖慢事件循环
+     */
+    private volatile InetSocketAddress lastUsedProxyAddress;
 
     private AutoConfigManager() {
         thread = new HandlerThread("ConfigManager");
@@ -125,6 +137,7 @@ public class AutoConfigManager {
             }
 
             autoConfig = newConfig;
+            lastUsedProxyAddress = null;
 
             logger.v("Proxy auto config loaded");
         } catch (IOException e) {
@@ -137,7 +150,7 @@ public class AutoConfigManager {
     public void lookup(final String host, final ProxyLookupCallback callback) {
         if (autoConfig == null) {
             logger.v("Returned null for host %s since auto config is not ready and will be reload", host);
-            callback.onProxyLookup(null);
+            callback.onProxyLookup(null, null);
             return;
         }
 
@@ -146,17 +159,45 @@ public class AutoConfigManager {
             @Override
             public void run() {
                 String proxy = autoConfig.findProxyForHost(host);
-                lastUsedProxy = parse(proxy);
-                callback.onProxyLookup(lastUsedProxy);
+                Uri uri = parse(proxy);
+                InetSocketAddress address = resolve(uri);
+
+                lastUsedProxy = uri;
+                lastUsedProxyAddress = address;
+
+                callback.onProxyLookup(uri, address);
                 logger.v("Finished for host %s: %s", host, proxy);
             }
         });
     }
 
+    /**
+     * 解析代理的地址，和上次用的是同一个代理时直接复用，只在 PAC 线程调用
+     */
+    private InetSocketAddress resolve(Uri proxy) {
+        if (proxy == null) {
+            return null;
+        }
+
+        InetSocketAddress address = lastUsedProxyAddress;
+        if (address != null && proxy.equals(lastUsedProxy)) {
+            return address;
+        }
+
+        return new InetSocketAddress(proxy.getHost(), proxy.getPort());
+    }
+
     public Uri getLastUsedProxy() {
         return lastUsedProxy;
     }
 
+    /**
+     * @return 上次用的代理解析好的地址，可以在任意线程调用，不会阻塞
+     */
+    public InetSocketAddress getLastUsedProxyAddress() {
+        return lastUsedProxyAddress;
+    }
+
     private void dispose() {
         handler.removeCallbacksAndMessages(null);
 
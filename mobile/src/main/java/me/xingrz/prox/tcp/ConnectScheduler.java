@@ -0,0 +1,572 @@
+/*
+ * Copyright (C) 2015 XiNGRZ <chenxingyu92@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package me.xingrz.prox.tcp;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import me.xingrz.prox.logging.FormattingLogger;
+import me.xingrz.prox.logging.FormattingLoggers;
+
+/**
+ * 向外连接的调度器
+ * <p/>
+ * 每个目标（远端或上游代理）各有一条等待队列和一份并发名额。
+ * 有空余名额的目标轮流各放行一个会话，一个目标满了不会挡住其他目标的会话。
+ * <p/>
+ * 名额按 AIMD 自适应：建立得顺利就慢慢加，建立延迟明显变长或连接失败就成倍减，
+ * 始终在直连或代理各自的上下限之内。
+ * <p/>
+ * 等待中的会话按 {@link Priority} 分级，高优先级先放行，低优先级等久了会被提前，不会饿死。
+ * <p/>
+ * 可以从任意线程调用。
+ *
+ * @author XiNGRZ
+ */
+public class ConnectScheduler {
+
+    private static final FormattingLogger logger = FormattingLoggers.getContextLogger();
+
+    /**
+     * 直连同一个远端的初始并发数和默认上下限
+     */
+    public static final int DEFAULT_DIRECT_LIMIT = 20;
+    public static final int DEFAULT_DIRECT_FLOOR = 4;
+    public static final int DEFAULT_DIRECT_CEILING = 64;
+
+    /**
+     * 经由同一个上游代理的初始并发数和默认上下限，所有走代理的连接都共享它，所以要比直连的宽得多
+     */
+    public static final int DEFAULT_PROXY_LIMIT = 64;
+    public static final int DEFAULT_PROXY_FLOOR = 8;
+    public static final int DEFAULT_PROXY_CEILING = 256;
+
+    /**
+     * 平滑后的建立延迟超过基线的这个倍数就认为目标开始吃力了
+     */
+    private static final int LATENCY_TOLERANCE = 2;
+
+    private static final double LATENCY_BACKOFF = 0.9;
+    private static final double FAILURE_BACKOFF = 0.5;
+
+    /**
+     * 两次减小之间至少间隔一个平滑延迟，一批同时超时的连接只算一次拥塞
+     */
+    private static final long MIN_BACKOFF_INTERVAL_MS = 1000;
+
+    /**
+     * 各优先级的会话等了这么久以后就不再让位给更高的优先级
+     */
+    private static final long[] AGING_MS = {0, 1000, 3000};
+
+    /**
+     * 最多记住这么多个目标学到的名额，超出时丢掉最久没用过的空闲目标
+     */
+    private static final int MAX_DESTINATIONS = 256;
+
+    /**
+     * 会话的优先级，数值越小越优先
+     */
+    public enum Priority {
+        /**
+         * 前台交互，比如网页和即时通讯
+         */
+        INTERACTIVE,
+        NORMAL,
+        /**
+         * 后台的大量传输，比如下载和同步
+         */
+        BULK
+    }
+
+    private static final Priority[] PRIORITIES = Priority.values();
+
+    /**
+     * 一个目标的等待队列，每个优先级一条，会话之间用侵入式双向链表串起来，移除是 O(1) 的
+     */
+    static final class Destination {
+
+        final InetSocketAddress address;
+        final boolean proxy;
+
+        final TcpProxySession[] heads = new TcpProxySession[PRIORITIES.length];
+        final TcpProxySession[] tails = new TcpProxySession[PRIORITIES.length];
+        final int[] waitingByPriority = new int[PRIORITIES.length];
+        int waiting;
+
+        int executing;
+
+        /**
+         * 是否在对应优先级的轮转队列里，出队时才检查它还能不能放行
+         */
+        final boolean[] scheduled = new boolean[PRIORITIES.length];
+
+        /**
+         * 当前名额，小数部分是加性增长攒下的
+         */
+        double limit;
+
+        /**
+         * 建立延迟的平滑值和基线，基线取见过的最小值并缓慢回升，没有样本时为 -1
+         */
+        long smoothedRtt = -1;
+        long minRtt = -1;
+
+        long lastBackoffAt;
+
+        long successes;
+        long failures;
+
+        Destination(InetSocketAddress address, boolean proxy, double limit) {
+            this.address = address;
+            this.proxy = proxy;
+            this.limit = limit;
+        }
+
+        boolean isIdle() {
+            return waiting == 0 && executing == 0;
+        }
+
+    }
+
+    /**
+     * 目标的一份快照，供统计和调试用
+     */
+    public static final class Stats {
+
+        public final InetSocketAddress address;
+        public final boolean proxy;
+        public final int limit;
+        public final int executing;
+        public final int waiting;
+        public final long smoothedRtt;
+        public final long minRtt;
+        public final long successes;
+        public final long failures;
+
+        private Stats(Destination destination) {
+            this.address = destination.address;
+            this.proxy = destination.proxy;
+            this.limit = (int) destination.limit;
+            this.executing = destination.executing;
+            this.waiting = destination.waiting;
+            this.smoothedRtt = destination.smoothedRtt;
+            this.minRtt = destination.minRtt;
+            this.successes = destination.successes;
+            this.failures = destination.failures;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s%s limit %d, executing %d, waiting %d, rtt %d/%d ms, ok %d, failed %d",
+                    address, proxy ? " (proxy)" : "", limit, executing, waiting,
+                    smoothedRtt, minRtt, successes, failures);
+        }
+
+    }
+
+    /**
+     * 一个优先级的排队时间统计
+     */
+    public static final class WaitStats {
+
+        public final Priority priority;
+        public final long dispatched;
+        public final long totalWaitMs;
+        public final long maxWaitMs;
+
+        private WaitStats(Priority priority, long dispatched, long totalWaitMs, long maxWaitMs) {
+            this.priority = priority;
+            this.dispatched = dispatched;
+            this.totalWaitMs = totalWaitMs;
+            this.maxWaitMs = maxWaitMs;
+        }
+
+        public long getAverageWaitMs() {
+            return dispatched == 0 ? 0 : totalWaitMs / dispatched;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s dispatched %d, wait avg %d ms, max %d ms",
+                    priority, dispatched, getAverageWaitMs(), maxWaitMs);
+        }
+
+    }
+
+    /**
+     * 按访问顺序排列，只淘汰空闲的目标，忙着的目标宁可让表暂时超出上限
+     */
+    private final LinkedHashMap<InetSocketAddress, Destination> destinations =
+            new LinkedHashMap<InetSocketAddress, Destination>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<InetSocketAddress, Destination> eldest) {
+                    return size() > MAX_DESTINATIONS && eldest.getValue().isIdle();
+                }
+            };
+
+    /**
+     * 每个优先级一条轮转队列，里面是这个优先级还有会话在等、并且有空余名额的目标
+     */
+    private final ArrayDeque<Destination>[] ready = newReadyQueues();
+
+    private final long[] dispatched = new long[PRIORITIES.length];
+    private final long[] totalWaitMs = new long[PRIORITIES.length];
+    private final long[] maxWaitMs = new long[PRIORITIES.length];
+
+    private final SessionClassifier classifier = new SessionClassifier();
+
+    private int directFloor = DEFAULT_DIRECT_FLOOR;
+    private int directCeiling = DEFAULT_DIRECT_CEILING;
+
+    private int proxyFloor = DEFAULT_PROXY_FLOOR;
+    private int proxyCeiling = DEFAULT_PROXY_CEILING;
+
+    /**
+     * 设置直连目标的名额上下限，已学到的名额会被收进新的范围里
+     *
+     * @param floor   下限
+     * @param ceiling 上限
+     */
+    public synchronized void setDirectLimits(int floor, int ceiling) {
+        checkLimits(floor, ceiling);
+        directFloor = floor;
+        directCeiling = ceiling;
+        reschedule();
+    }
+
+    /**
+     * 设置上游代理的名额上下限，已学到的名额会被收进新的范围里
+     *
+     * @param floor   下限
+     * @param ceiling 上限
+     */
+    public synchronized void setProxyLimits(int floor, int ceiling) {
+        checkLimits(floor, ceiling);
+        proxyFloor = floor;
+        proxyCeiling = ceiling;
+        reschedule();
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static ArrayDeque<Destination>[] newReadyQueues() {
+        ArrayDeque<Destination>[] queues = new ArrayDeque[PRIORITIES.length];
+        for (int i = 0; i < queues.length; i++) {
+            queues[i] = new ArrayDeque<>();
+        }
+        return queues;
+    }
+
+    /**
+     * @return 给会话分级的分类器，可以按端口或应用调整优先级
+     */
+    public SessionClassifier getClassifier() {
+        return classifier;
+    }
+
+    private static void checkLimits(int floor, int ceiling) {
+        if (floor < 1 || ceiling < floor) {
+            throw new IllegalArgumentException("invalid limits " + floor + ".." + ceiling);
+        }
+    }
+
+    /**
+     * @return 所有已知目标当前的名额和延迟估计
+     */
+    public synchronized List<Stats> getStats() {
+        List<Stats> stats = new ArrayList<>(destinations.size());
+        for (Destination destination : destinations.values()) {
+            stats.add(new Stats(destination));
+        }
+        return stats;
+    }
+
+    /**
+     * @return 各优先级已放行的会话数和排队时间
+     */
+    public synchronized List<WaitStats> getWaitStats() {
+        List<WaitStats> stats = new ArrayList<>(PRIORITIES.length);
+        for (Priority priority : PRIORITIES) {
+            int i = priority.ordinal();
+            stats.add(new WaitStats(priority, dispatched[i], totalWaitMs[i], maxWaitMs[i]));
+        }
+        return stats;
+    }
+
+    /**
+     * 将会话加入它的目标的等待队列
+     *
+     * @param session 会话
+     */
+    public synchronized void queue(TcpProxySession session) {
+        InetSocketAddress address = session.getDestination();
+
+        Destination destination = destinations.get(address);
+        if (destination == null) {
+            boolean proxy = session.isProxied();
+            destination = new Destination(address, proxy, proxy
+                    ? clamp(DEFAULT_PROXY_LIMIT, proxyFloor, proxyCeiling)
+                    : clamp(DEFAULT_DIRECT_LIMIT, directFloor, directCeiling));
+            destinations.put(address, destination);
+        }
+
+        int priority = session.priority.ordinal();
+
+        session.queuedAt = destination;
+        session.queuePrev = destination.tails[priority];
+        session.queueNext = null;
+        session.enqueuedAt = System.currentTimeMillis();
+
+        if (destination.tails[priority] == null) {
+            destination.heads[priority] = session;
+        } else {
+            destination.tails[priority].queueNext = session;
+        }
+
+        destination.tails[priority] = session;
+        destination.waitingByPriority[priority]++;
+        destination.waiting++;
+
+        logger.v("Enqueued session %08x as %s, destination %s executing %d, waiting %d",
+                session.hashCode(), session.priority, address, destination.executing, destination.waiting);
+
+        schedule(destination, priority);
+        tick();
+    }
+
+    /**
+     * 释放会话占用的位置，等待中的从队列移除，已放行的归还名额
+     * 会话关闭时调用一次
+     *
+     * @param session 会话
+     */
+    public synchronized void release(TcpProxySession session) {
+        Destination destination = session.queuedAt;
+        if (destination != null) {
+            unlink(destination, session);
+
+            logger.v("Removed non-executed session %08x, destination %s",
+                    session.hashCode(), destination.address);
+
+            return;
+        }
+
+        destination = session.executedAt;
+        if (destination == null) {
+            return;
+        }
+
+        session.executedAt = null;
+        destination.executing--;
+
+        logger.v("Finished session %08x, destination %s executing %d, waiting %d",
+                session.hashCode(), destination.address, destination.executing, destination.waiting);
+
+        schedule(destination);
+        tick();
+    }
+
+    /**
+     * 会话的连接建立了（直连完成三次握手，或代理回应了 CONNECT），用建立延迟来调整名额
+     *
+     * @param session 会话
+     * @param rtt     从开始连接到建立所花的毫秒数
+     */
+    public synchronized void onEstablished(TcpProxySession session, long rtt) {
+        Destination destination = session.executedAt;
+        if (destination == null) {
+            return;
+        }
+
+        destination.successes++;
+
+        destination.smoothedRtt = destination.smoothedRtt < 0
+                ? rtt : destination.smoothedRtt + (rtt - destination.smoothedRtt) / 8;
+
+        if (destination.minRtt < 0 || rtt < destination.minRtt) {
+            destination.minRtt = rtt;
+        } else {
+            // 基线缓慢回升，路由变了以后不会永远拿旧的最小值来比
+            destination.minRtt += (rtt - destination.minRtt) / 64;
+        }
+
+        if (destination.minRtt > 0
+                && destination.smoothedRtt > destination.minRtt * LATENCY_TOLERANCE) {
+            backoff(destination, LATENCY_BACKOFF);
+        } else if (destination.executing * 2 >= destination.limit) {
+            // 名额真的用上了才加，每用满一轮加一
+            destination.limit = Math.min(destination.limit + 1 / destination.limit,
+                    destination.proxy ? proxyCeiling : directCeiling);
+            schedule(destination);
+            tick();
+        }
+    }
+
+    /**
+     * 会话连接失败或超时，成倍减小名额
+     *
+     * @param session 会话
+     */
+    public synchronized void onFailure(TcpProxySession session) {
+        Destination destination = session.executedAt;
+        if (destination == null) {
+            return;
+        }
+
+        destination.failures++;
+        backoff(destination, FAILURE_BACKOFF);
+    }
+
+    private void backoff(Destination destination, double factor) {
+        long now = System.currentTimeMillis();
+        if (now - destination.lastBackoffAt < Math.max(destination.smoothedRtt, MIN_BACKOFF_INTERVAL_MS)) {
+            return;
+        }
+
+        destination.lastBackoffAt = now;
+        destination.limit = Math.max(destination.limit * factor,
+                destination.proxy ? proxyFloor : directFloor);
+
+        logger.v("Destination %s backing off, limit %d, rtt %d/%d ms",
+                destination.address, (int) destination.limit,
+                destination.smoothedRtt, destination.minRtt);
+    }
+
+    /**
+     * 轮流从有空余名额的目标各放行一个会话，直到没有可以放行的
+     * 每次先服务等得太久的低优先级，再按优先级从高到低
+     */
+    private void tick() {
+        long now = System.currentTimeMillis();
+
+        int priority;
+        while ((priority = pickPriority(now)) >= 0) {
+            Destination destination = ready[priority].poll();
+            if (!isRunnable(destination, priority)) {
+                destination.scheduled[priority] = false;
+                continue;
+            }
+
+            TcpProxySession session = destination.heads[priority];
+            unlink(destination, session);
+            session.executedAt = destination;
+            destination.executing++;
+
+            long wait = now - session.enqueuedAt;
+            dispatched[priority]++;
+            totalWaitMs[priority] += wait;
+            maxWaitMs[priority] = Math.max(maxWaitMs[priority], wait);
+
+            logger.v("Picked session %08x as %s after %d ms. Destination %s executing %d, waiting %d",
+                    session.hashCode(), session.priority, wait,
+                    destination.address, destination.executing, destination.waiting);
+
+            session.connect();
+
+            if (isRunnable(destination, priority)) {
+                ready[priority].offer(destination);
+            } else {
+                destination.scheduled[priority] = false;
+            }
+        }
+    }
+
+    /**
+     * @return 下一个该服务的优先级，都没有可放行的时为 -1
+     */
+    private int pickPriority(long now) {
+        // 轮转队列头上的目标通常就是这个优先级里等得最久的
+        for (int i = PRIORITIES.length - 1; i > 0; i--) {
+            Destination destination = ready[i].peek();
+            if (destination != null && destination.heads[i] != null
+                    && now - destination.heads[i].enqueuedAt >= AGING_MS[i]) {
+                return i;
+            }
+        }
+
+        for (int i = 0; i < PRIORITIES.length; i++) {
+            if (!ready[i].isEmpty()) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    private void reschedule() {
+        for (Destination destination : destinations.values()) {
+            destination.limit = destination.proxy
+                    ? clamp(destination.limit, proxyFloor, proxyCeiling)
+                    : clamp(destination.limit, directFloor, directCeiling);
+            schedule(destination);
+        }
+
+        tick();
+    }
+
+    private void schedule(Destination destination) {
+        for (int i = 0; i < PRIORITIES.length; i++) {
+            schedule(destination, i);
+        }
+    }
+
+    private void schedule(Destination destination, int priority) {
+        if (!destination.scheduled[priority] && isRunnable(destination, priority)) {
+            destination.scheduled[priority] = true;
+            ready[priority].offer(destination);
+        }
+    }
+
+    private boolean isRunnable(Destination destination, int priority) {
+        return destination.waitingByPriority[priority] > 0
+                && destination.executing < (int) destination.limit;
+    }
+
+    private static double clamp(double limit, int floor, int ceiling) {
+        return Math.min(Math.max(limit, floor), ceiling);
+    }
+
+    private void unlink(Destination destination, TcpProxySession session) {
+        int priority = session.priority.ordinal();
+
+        if (session.queuePrev == null) {
+            destination.heads[priority] = session.queueNext;
+        } else {
+            session.queuePrev.queueNext = session.queueNext;
+        }
+
+        if (session.queueNext == null) {
+            destination.tails[priority] = session.queuePrev;
+        } else {
+            session.queueNext.queuePrev = session.queuePrev;
+        }
+
+        session.queuedAt = null;
+        session.queuePrev = null;
+        session.queueNext = null;
+
+        destination.waitingByPriority[priority]--;
+        destination.waiting--;
+    }
+
+}
@@ -0,0 +1,325 @@
+/*
+ * Copyright (C) 2015 XiNGRZ <chenxingyu92@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package me.xingrz.prox.tcp;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import me.xingrz.prox.logging.FormattingLogger;
+import me.xingrz.prox.logging.FormattingLoggers;
+
+/**
+ * 给排队的 TCP 会话分级
+ * <p/>
+ * 依次看所属应用、目标端口和嗅探出的协议，前面的规则优先。
+ * 所属应用在后台线程里从 /proc/net/tcp 查出，分级时只取缓存的结果。
+ * <p/>
+ * 配置可以从任意线程修改。
+ *
+ * @author XiNGRZ
+ */
+public class SessionClassifier {
+
+    private static final FormattingLogger logger = FormattingLoggers.getContextLogger();
+
+    /**
+     * SSH、Telnet、DNS、XMPP、GCM、RDP、VNC 这类一来一回的协议
+     */
+    private static final int[] INTERACTIVE_PORTS = {22, 23, 53, 3389, 5222, 5223, 5228, 5900};
+
+    /**
+     * FTP、NNTP、rsync 和 BitTorrent 这类大量传输的协议
+     */
+    private static final int[] BULK_PORTS = {20, 21, 119, 563, 873,
+            6881, 6882, 6883, 6884, 6885, 6886, 6887, 6888, 6889};
+
+    private static final String[] PROC_NET_TCP = {"/proc/net/tcp6", "/proc/net/tcp"};
+
+    /**
+     * 查到的 UID 最多缓存这么多，会话没走到分级就结束时留下的会被整个清掉
+     */
+    private static final int MAX_CACHED_UIDS = 1024;
+
+    private final ConcurrentHashMap<Integer, ConnectScheduler.Priority> portPriorities =
+            new ConcurrentHashMap<>();
+
+    private final ConcurrentHashMap<Integer, ConnectScheduler.Priority> appPriorities =
+            new ConcurrentHashMap<>();
+
+    /**
+     * 按来源端口和目标端口缓存查到的 UID，查过但没找到的为 -1
+     */
+    private final ConcurrentHashMap<Integer, Integer> uids = new ConcurrentHashMap<>();
+
+    /**
+     * 等着下一次扫描的会话
+     */
+    private final Set<Integer> pendingLookups =
+            Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+
+    private final AtomicBoolean scanScheduled = new AtomicBoolean();
+
+    /**
+     * 读 /proc/net/tcp 是阻塞的文件 IO，放到单独的线程里，闲下来后线程自己退出
+     */
+    private final ThreadPoolExecutor lookupExecutor = new ThreadPoolExecutor(0, 1,
+            30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "UidLookup");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final Runnable scan = new Runnable() {
+        @Override
+        public void run() {
+            scanScheduled.set(false);
+            scanProcNetTcp();
+        }
+    };
+
+    public SessionClassifier() {
+        for (int port : INTERACTIVE_PORTS) {
+            portPriorities.put(port, ConnectScheduler.Priority.INTERACTIVE);
+        }
+
+        for (int port : BULK_PORTS) {
+            portPriorities.put(port, ConnectScheduler.Priority.BULK);
+        }
+    }
+
+    /**
+     * 指定连往某个端口的会话的优先级
+     *
+     * @param port     目标端口
+     * @param priority 优先级，{@code null} 表示不再按这个端口分级
+     */
+    public void setPortPriority(int port, ConnectScheduler.Priority priority) {
+        if (priority == null) {
+            portPriorities.remove(port);
+        } else {
+            portPriorities.put(port, priority);
+        }
+    }
+
+    /**
+     * 指定某个应用发起的会话的优先级
+     * 只要设置过，每个新会话接受时都会在后台查一次 /proc/net/tcp 来找出所属应用
+     *
+     * @param uid      应用的 UID
+     * @param priority 优先级，{@code null} 表示不再按这个应用分级
+     */
+    public void setAppPriority(int uid, ConnectScheduler.Priority priority) {
+        if (priority == null) {
+            appPriorities.remove(uid);
+        } else {
+            appPriorities.put(uid, priority);
+        }
+    }
+
+    /**
+     * 在后台查出会话所属的应用，分级时直接取结果，不在事件循环里读文件
+     * 嗅探 Host 的这段时间通常足够查完，来不及的话就跳过按应用分级
+     *
+     * @param session 会话
+     */
+    public void prefetch(TcpProxySession session) {
+        if (appPriorities.isEmpty()) {
+            return;
+        }
+
+        pendingLookups.add(lookupKey(session.getSourcePort(), session.getRemotePort()));
+
+        if (scanScheduled.compareAndSet(false, true)) {
+            lookupExecutor.execute(scan);
+        }
+    }
+
+    /**
+     * 给会话分级，在会话所在的事件循环里调用，不会阻塞
+     *
+     * @param session 会话
+     * @return 优先级
+     */
+    public ConnectScheduler.Priority classify(TcpProxySession session) {
+        ConnectScheduler.Priority priority;
+
+        Integer uid = uids.remove(lookupKey(session.getSourcePort(), session.getRemotePort()));
+        if (uid != null && uid >= 0 && (priority = appPriorities.get(uid)) != null) {
+            return priority;
+        }
+
+        if ((priority = portPriorities.get(session.getRemotePort())) != null) {
+            return priority;
+        }
+
+        switch (session.getProtocol()) {
+            case HTTP:
+            case TLS:
+                return ConnectScheduler.Priority.INTERACTIVE;
+            default:
+                return ConnectScheduler.Priority.NORMAL;
+        }
+    }
+
+    private static int lookupKey(int sourcePort, int remotePort) {
+        return (sourcePort << 16) | remotePort;
+    }
+
+    /**
+     * 扫一遍 /proc/net/tcp，一次解决所有等着的会话
+     * 应用的套接字本地端口就是会话的来源端口，远端端口就是会话的目标端口
+     */
+    private void scanProcNetTcp() {
+        if (pendingLookups.isEmpty()) {
+            return;
+        }
+
+        if (uids.size() > MAX_CACHED_UIDS) {
+            uids.clear();
+        }
+
+        // 只处理扫描开始前登记的，之后登记的等下一次扫描
+        Set<Integer> lookups = new HashSet<>(pendingLookups);
+
+        int[] entry = new int[3];
+
+        for (String path : PROC_NET_TCP) {
+            try (BufferedReader reader = new BufferedReader(new FileReader(path))) {
+                // 跳过表头
+                String line = reader.readLine();
+                while ((line = reader.readLine()) != null && !lookups.isEmpty()) {
+                    if (!parseEntry(line, entry)) {
+                        continue;
+                    }
+
+                    Integer key = lookupKey(entry[0], entry[1]);
+                    if (lookups.remove(key)) {
+                        uids.put(key, entry[2]);
+                    }
+                }
+            } catch (IOException e) {
+                logger.v("Failed to read %s: %s", path, e.getMessage());
+            }
+        }
+
+        for (Integer key : lookups) {
+            uids.put(key, -1);
+        }
+
+        Iterator<Integer> iterator = pendingLookups.iterator();
+        while (iterator.hasNext()) {
+            if (uids.containsKey(iterator.next())) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * 从 /proc/net/tcp 的一行里取出本地端口、远端端口和 UID，逐字符扫描，不用正则切分
+     * 每行形如 {@code 0: 0100007F:1F90 00000000:0000 0A 00000000:00000000 00:00000000 00000000 10061 ...}，
+     * 第 2、3 列是十六进制的地址和端口，第 8 列是十进制的 UID
+     *
+     * @param line  一行
+     * @param entry 依次写入本地端口、远端端口和 UID
+     * @return 是否是完整的一行
+     */
+    static boolean parseEntry(String line, int[] entry) {
+        int length = line.length();
+        int field = -1;
+        int i = 0;
+
+        while (i < length) {
+            while (i < length && line.charAt(i) == ' ') {
+                i++;
+            }
+
+            if (i == length) {
+                break;
+            }
+
+            field++;
+
+            int start = i;
+            while (i < length && line.charAt(i) != ' ') {
+                i++;
+            }
+
+            if (field == 1 || field == 2) {
+                int port = parseHexPort(line, start, i);
+                if (port < 0) {
+                    return false;
+                }
+
+                entry[field - 1] = port;
+            } else if (field == 7) {
+                int uid = 0;
+                for (int j = start; j < i; j++) {
+                    char c = line.charAt(j);
+                    if (c < '0' || c > '9') {
+                        return false;
+                    }
+
+                    uid = uid * 10 + (c - '0');
+                }
+
+                entry[2] = uid;
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * @return 形如 {@code 0100007F:1F90} 的一列里冒号后的十六进制端口，格式不对时为 -1
+     */
+    private static int parseHexPort(String line, int start, int end) {
+        int colon = line.lastIndexOf(':', end - 1);
+        if (colon < start || colon == end - 1) {
+            return -1;
+        }
+
+        int port = 0;
+        for (int i = colon + 1; i < end; i++) {
+            int digit = Character.digit(line.charAt(i), 16);
+            if (digit < 0) {
+                return -1;
+            }
+
+            port = (port << 4) | digit;
+        }
+
+        return port;
+    }
+
+}
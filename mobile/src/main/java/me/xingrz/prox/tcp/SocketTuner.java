@@ -0,0 +1,294 @@
+/*
+ * Copyright (C) 2015 XiNGRZ <chenxingyu92@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package me.xingrz.prox.tcp;
+
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.concurrent.TimeUnit;
+
+import me.xingrz.prox.logging.FormattingLogger;
+import me.xingrz.prox.tcp.tunnel.IncomingTunnel;
+import me.xingrz.prox.tcp.tunnel.OutgoingTunnel;
+import me.xingrz.prox.transport.EventLoop;
+import me.xingrz.prox.transport.TimerWheel;
+
+/**
+ * 会话的 socket 调优
+ * <p/>
+ * 每秒采样一次两条隧道的吞吐，据此调整两条通道的 socket 参数：
+ * <ul>
+ * <li>交互型流量（吞吐低）开启 TCP_NODELAY，避免 Nagle 算法攒包带来的延迟；转为大流量后关掉，让内核合并小段</li>
+ * <li>按带宽时延积（峰值吞吐 × 连接握手所花时间）调大 SO_RCVBUF 和 SO_SNDBUF，只增不减；
+ * 没超过内核当前的大小就不碰，因为一旦设置了 SO_RCVBUF 内核就不再自动调整接收缓冲区</li>
+ * <li>存活超过一定时间的长连接开启 TCP keepalive</li>
+ * </ul>
+ * 只在会话所在的事件循环中使用。
+ *
+ * @author XiNGRZ
+ */
+class SocketTuner implements Runnable {
+
+    private static final long SAMPLE_INTERVAL_MS = 1000;
+
+    /**
+     * 吞吐达到这个值就算大流量
+     */
+    private static final long BULK_BYTES_PER_SECOND = 256 * 1024;
+
+    /**
+     * 连接握手时间过短时按这个值估算，避免局域网下算出的缓冲区过小
+     */
+    private static final long MIN_RTT_MS = 20;
+
+    private static final int MIN_BUFFER_SIZE = 16 * 1024;
+    private static final int MAX_BUFFER_SIZE = 1024 * 1024;
+
+    private static final long KEEPALIVE_AFTER_MS = TimeUnit.SECONDS.toMillis(60);
+
+    enum TrafficClass {
+        INTERACTIVE, BULK
+    }
+
+    private final FormattingLogger logger;
+
+    private final EventLoop loop;
+    private final IncomingTunnel incomingTunnel;
+    private final OutgoingTunnel outgoingTunnel;
+
+    private final TimerWheel.Timeout sampleTimeout = new TimerWheel.Timeout(this);
+
+    private final long startedAt = System.currentTimeMillis();
+
+    private long lastSampleAt = startedAt;
+    private long lastBytes;
+
+    private long peakBytesPerSecond;
+
+    private TrafficClass trafficClass;
+    private int bufferSize;
+
+    /**
+     * 两条通道当前的缓冲区大小，开始时从内核读出
+     */
+    private int incomingReceiveBufferSize;
+    private int incomingSendBufferSize;
+    private int outgoingReceiveBufferSize;
+    private int outgoingSendBufferSize;
+    private boolean keepAlive;
+
+    private boolean stopped;
+
+    SocketTuner(FormattingLogger logger, EventLoop loop,
+                IncomingTunnel incomingTunnel, OutgoingTunnel outgoingTunnel) {
+        this.logger = logger;
+        this.loop = loop;
+        this.incomingTunnel = incomingTunnel;
+        this.outgoingTunnel = outgoingTunnel;
+    }
+
+    /**
+     * 按交互型流量设置初始参数，并开始采样
+     */
+    void start() {
+        applyTrafficClass(TrafficClass.INTERACTIVE);
+
+        Socket incoming = incomingTunnel.socket();
+        Socket outgoing = outgoingTunnel.socket();
+        incomingReceiveBufferSize = getReceiveBufferSize(incoming);
+        incomingSendBufferSize = getSendBufferSize(incoming);
+        outgoingReceiveBufferSize = getReceiveBufferSize(outgoing);
+        outgoingSendBufferSize = getSendBufferSize(outgoing);
+
+        loop.schedule(sampleTimeout, SAMPLE_INTERVAL_MS);
+    }
+
+    /**
+     * 停止采样
+     */
+    void stop() {
+        stopped = true;
+        sampleTimeout.cancel();
+    }
+
+    @Override
+    public void run() {
+        if (stopped) {
+            return;
+        }
+
+        sample(System.currentTimeMillis());
+        loop.schedule(sampleTimeout, SAMPLE_INTERVAL_MS);
+    }
+
+    private void sample(long now) {
+        long bytes = incomingTunnel.getBytesReceived() + outgoingTunnel.getBytesReceived();
+        long elapsed = Math.max(now - lastSampleAt, 1);
+
+        long bytesPerSecond = (bytes - lastBytes) * 1000 / elapsed;
+        if (bytesPerSecond > peakBytesPerSecond) {
+            peakBytesPerSecond = bytesPerSecond;
+        }
+
+        lastSampleAt = now;
+        lastBytes = bytes;
+
+        applyTrafficClass(bytesPerSecond >= BULK_BYTES_PER_SECOND
+                ? TrafficClass.BULK : TrafficClass.INTERACTIVE);
+
+        long rtt = outgoingTunnel.getConnectRtt();
+        if (rtt >= 0) {
+            applyBufferSize(bufferSizeFor(peakBytesPerSecond, Math.max(rtt, MIN_RTT_MS)));
+        }
+
+        if (!keepAlive && now - startedAt >= KEEPALIVE_AFTER_MS) {
+            keepAlive = true;
+            setKeepAlive(incomingTunnel.socket());
+            setKeepAlive(outgoingTunnel.socket());
+            logger.v("Long-lived session, enabled keepalive");
+        }
+    }
+
+    /**
+     * 缓冲区取带宽时延积的两倍，向上取 2 的幂，并限制在上下限之间
+     */
+    static int bufferSizeFor(long bytesPerSecond, long rttMs) {
+        long bdp = bytesPerSecond * rttMs / 1000;
+        long wanted = Math.min(Math.max(bdp * 2, MIN_BUFFER_SIZE), MAX_BUFFER_SIZE);
+        return (int) Long.highestOneBit(wanted - 1) << 1;
+    }
+
+    private void applyTrafficClass(TrafficClass wanted) {
+        if (wanted == trafficClass) {
+            return;
+        }
+
+        boolean noDelay = wanted == TrafficClass.INTERACTIVE;
+        setTcpNoDelay(incomingTunnel.socket(), noDelay);
+        setTcpNoDelay(outgoingTunnel.socket(), noDelay);
+
+        if (trafficClass != null) {
+            logger.v("Reclassified as %s", wanted);
+        }
+
+        trafficClass = wanted;
+    }
+
+    private void applyBufferSize(int size) {
+        if (size <= bufferSize) {
+            return;
+        }
+
+        Socket incoming = incomingTunnel.socket();
+        Socket outgoing = outgoingTunnel.socket();
+
+        boolean changed = false;
+
+        if (size > incomingReceiveBufferSize && setReceiveBufferSize(incoming, size)) {
+            incomingReceiveBufferSize = size;
+            changed = true;
+        }
+
+        if (size > incomingSendBufferSize && setSendBufferSize(incoming, size)) {
+            incomingSendBufferSize = size;
+            changed = true;
+        }
+
+        if (size > outgoingReceiveBufferSize && setReceiveBufferSize(outgoing, size)) {
+            outgoingReceiveBufferSize = size;
+            changed = true;
+        }
+
+        if (size > outgoingSendBufferSize && setSendBufferSize(outgoing, size)) {
+            outgoingSendBufferSize = size;
+            changed = true;
+        }
+
+        bufferSize = size;
+
+        if (!changed) {
+            return;
+        }
+
+        logger.v("Socket buffers sized to %d for peak %d B/s, rtt %d ms",
+                size, peakBytesPerSecond, outgoingTunnel.getConnectRtt());
+    }
+
+    private void setTcpNoDelay(Socket socket, boolean on) {
+        try {
+            socket.setTcpNoDelay(on);
+        } catch (SocketException e) {
+            logger.v("Failed to set TCP_NODELAY: %s", e.getMessage());
+        }
+    }
+
+    private int getReceiveBufferSize(Socket socket) {
+        try {
+            return socket.getReceiveBufferSize();
+        } catch (SocketException e) {
+            logger.v("Failed to get SO_RCVBUF: %s", e.getMessage());
+            return Integer.MAX_VALUE;
+        }
+    }
+
+    private int getSendBufferSize(Socket socket) {
+        try {
+            return socket.getSendBufferSize();
+        } catch (SocketException e) {
+            logger.v("Failed to get SO_SNDBUF: %s", e.getMessage());
+            return Integer.MAX_VALUE;
+        }
+    }
+
+    private boolean setReceiveBufferSize(Socket socket, int size) {
+        try {
+            socket.setReceiveBufferSize(size);
+            return true;
+        } catch (SocketException e) {
+            logger.v("Failed to set SO_RCVBUF: %s", e.getMessage());
+            return false;
+        }
+    }
+
+    private boolean setSendBufferSize(Socket socket, int size) {
+        try {
+            socket.setSendBufferSize(size);
+            return true;
+        } catch (SocketException e) {
+            logger.v("Failed to set SO_SNDBUF: %s", e.getMessage());
+            return false;
+        }
+    }
+
+    private void setKeepAlive(Socket socket) {
+        try {
+            socket.setKeepAlive(true);
+        } catch (SocketException e) {
+            logger.v("Failed to set SO_KEEPALIVE: %s", e.getMessage());
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("SocketTuner[class:%s, peak:%d B/s, rtt:%d ms, buffers:%s, keepalive:%b]",
+                trafficClass, peakBytesPerSecond, outgoingTunnel.getConnectRtt(),
+                bufferSize == 0 ? "default" : incomingReceiveBufferSize + "/" + outgoingReceiveBufferSize,
+                keepAlive);
+    }
+
+}
@@ -21,27 +21,78 @@ package me.xingrz.prox.tcp;
 import org.apache.commons.io.IOUtils;
 
 import java.io.IOException;
-import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 
 import me.xingrz.prox.logging.FormattingLogger;
 import me.xingrz.prox.logging.FormattingLoggers;
 import me.xingrz.prox.selectable.Acceptable;
 import me.xingrz.prox.transport.AbstractTransportProxy;
+import me.xingrz.prox.transport.NatSessionManager;
 
 public class TcpProxy extends AbstractTransportProxy<ServerSocketChannel, TcpProxySession>
         implements Acceptable {
 
-    private static final int TCP_SESSION_MAX_COUNT = 60;
+    /**
+     * 映射端口有多少就能容纳多少会话；会话接受之后才创建 socket，表项本身很便宜
+     */
+    private static final int TCP_SESSION_MAX_COUNT = NatSessionManager.MAPPED_PORT_COUNT - 1;
     private static final long TCP_SESSION_TIMEOUT_MS = TimeUnit.SECONDS.toMillis(60);
 
+    /**
+     * 已建立隧道的会话空闲超时，长连接可能很久才有一次心跳，所以要比未建立的长得多
+     */
+    private static final long TCP_ESTABLISHED_SESSION_TIMEOUT_MS = TimeUnit.MINUTES.toMillis(10);
+
+    /**
+     * 双方都发出 FIN 后会话再保留一会儿，让最后的 ACK 和重传的 FIN 还能转发过去
+     */
+    private static final long TCP_CLOSING_SESSION_TIMEOUT_MS = TimeUnit.SECONDS.toMillis(10);
+
+    /**
+     * 默认的连接期限，包括代理握手，超过了就放弃。在调度器里排队也有同样的期限
+     */
+    private static final long TCP_CONNECT_TIMEOUT_MS = TimeUnit.SECONDS.toMillis(10);
+
+    private volatile long connectTimeoutMs = TCP_CONNECT_TIMEOUT_MS;
+
+    /**
+     * 从接受连接起最多等这么久来找出 Host，客户端就在本机，先说话的客户端通常马上就会发来数据
+     */
+    private static final long TCP_SNIFF_TIMEOUT_MS = 300;
+
+    private volatile long sniffTimeoutMs = TCP_SNIFF_TIMEOUT_MS;
+
+    /**
+     * 服务端先说话、又不会有 Host 可找的常见端口：FTP、SSH、Telnet、SMTP、POP3、NNTP、IMAP、
+     * SMTP submission、MySQL 和 VNC，直接跳过嗅探
+     */
+    private static final int[] TCP_SNIFF_BYPASS_PORTS = {21, 22, 23, 25, 110, 119, 143, 587, 3306, 5900};
+
+    private final Set<Integer> sniffBypassPorts =
+            Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+
+    /**
+     * 经由 HTTP 代理时不等 CONNECT 的回应就把客户端的数据跟着发出，省一个往返；
+     * 代理拒绝时这些数据会被丢弃，所以默认关闭
+     */
+    private volatile boolean optimisticConnect = false;
+
+    private final ConnectScheduler scheduler = new ConnectScheduler();
+
     public TcpProxy() {
         super(TCP_SESSION_MAX_COUNT, TCP_SESSION_TIMEOUT_MS);
+
+        for (int port : TCP_SNIFF_BYPASS_PORTS) {
+            sniffBypassPorts.add(port);
+        }
     }
 
     @Override
@@ -63,25 +114,120 @@ public class TcpProxy extends AbstractTransportProxy<ServerSocketChannel, TcpPro
         return serverChannel.socket().getLocalPort();
     }
 
-    @Override
-    protected TcpProxySession createSession(final int sourcePort, InetAddress remoteAddress, int remotePort) throws IOException {
-        return new TcpProxySession(selector, sourcePort, remoteAddress, remotePort);
+    /**
+     * 设置连接期限，对之后新建的会话生效
+     *
+     * @param timeout 期限
+     * @param unit    单位
+     */
+    public void setConnectTimeout(long timeout, TimeUnit unit) {
+        connectTimeoutMs = unit.toMillis(timeout);
+    }
+
+    /**
+     * @return 连接期限的毫秒数
+     */
+    public long getConnectTimeout() {
+        return connectTimeoutMs;
+    }
+
+    /**
+     * 设置嗅探期限，对之后新建的会话生效
+     *
+     * @param timeout 期限
+     * @param unit    单位
+     */
+    public void setSniffTimeout(long timeout, TimeUnit unit) {
+        sniffTimeoutMs = unit.toMillis(timeout);
+    }
+
+    /**
+     * @return 嗅探期限的毫秒数
+     */
+    public long getSniffTimeout() {
+        return sniffTimeoutMs;
+    }
+
+    /**
+     * 连往这个端口的会话不再嗅探，接受后马上按 IP 和端口路由
+     *
+     * @param port 目标端口
+     */
+    public void addSniffBypassPort(int port) {
+        sniffBypassPorts.add(port);
+    }
+
+    public void removeSniffBypassPort(int port) {
+        sniffBypassPorts.remove(port);
+    }
+
+    /**
+     * 设置是否乐观地发出 CONNECT，对之后新建的会话生效
+     *
+     * @param optimistic 是否不等代理回应就发出客户端的数据
+     */
+    public void setOptimisticConnect(boolean optimistic) {
+        optimisticConnect = optimistic;
+    }
+
+    public boolean isOptimisticConnect() {
+        return optimisticConnect;
+    }
+
+    /**
+     * @return 这个代理的连接调度器，可以用来调整直连和代理的并发名额
+     */
+    public ConnectScheduler getScheduler() {
+        return scheduler;
     }
 
     @Override
-    public TcpProxySession pickSession(int sourcePort, InetAddress remoteAddress, int remotePort) throws IOException {
-        TcpProxySession session = getSession(sourcePort);
-
-        if (session == null
-                || !session.getRemoteAddress().equals(remoteAddress)
-                || session.getRemotePort() != remotePort) {
-            session = super.pickSession(sourcePort, remoteAddress, remotePort);
-            logger.v("Created session %08x local:%d -> in:%d -> out:(pending) -> %s:%d",
-                    session.hashCode(),
-                    sourcePort, port(), remoteAddress.getHostAddress(), remotePort);
+    protected TcpProxySession createSession(int sourcePort, int remoteIp, int remotePort) throws IOException {
+        // 一个会话的两条隧道总在同一个 worker 循环里
+        return new TcpProxySession(runner.worker(sourcePort), sourcePort, remoteIp, remotePort,
+                scheduler, sniffBypassPorts.contains(remotePort) ? 0 : sniffTimeoutMs, connectTimeoutMs,
+                optimisticConnect);
+    }
+
+    /**
+     * 抽取一个会话，只能在 VPN 线程调用
+     * 不是 SYN 的数据包总是交给已有的会话，哪怕它已经完成，这样关闭阶段的 ACK 不会被当成新连接
+     *
+     * @param sourcePort 来源端口
+     * @param remoteIp   目标地址
+     * @param remotePort 目标端口
+     * @param syn        是否是发起连接的 SYN
+     * @return 会话实例
+     * @throws IOException 新建会话时可能会抛出异常
+     */
+    public TcpProxySession pickSession(int sourcePort, int remoteIp, int remotePort, boolean syn)
+            throws IOException {
+        if (!syn) {
+            TcpProxySession session = getSession(sourcePort, remoteIp, remotePort);
+            if (session != null) {
+                return session;
+            }
         }
 
-        return session;
+        return pickSession(sourcePort, remoteIp, remotePort);
+    }
+
+    /**
+     * 看到了一方的 FIN 或 RST，只能在 VPN 线程调用
+     * 一方的 FIN 只是半关闭，另一个方向还要继续转发；双方都 FIN 或任一方 RST 后会话才算完成，
+     * 此时并不马上移除，而是缩短过期时间
+     *
+     * @param session 会话
+     * @param local   是否是本地应用发出的
+     * @param reset   是否是 RST
+     */
+    public void onFin(TcpProxySession session, boolean local, boolean reset) {
+        if (session.onFin(local) || reset) {
+            if (!session.isFinished()) {
+                session.finish();
+                rescheduleIdleTimeout(session);
+            }
+        }
     }
 
     /**
@@ -89,7 +235,7 @@ public class TcpProxy extends AbstractTransportProxy<ServerSocketChannel, TcpPro
      */
     @Override
     public void onAcceptable(SelectionKey key) {
-        SocketChannel localChannel;
+        final SocketChannel localChannel;
 
         try {
             localChannel = serverChannel.accept();
@@ -98,23 +244,43 @@ public class TcpProxy extends AbstractTransportProxy<ServerSocketChannel, TcpPro
             return;
         }
 
-        int sourcePort = localChannel.socket().getPort();
+        int mappedPort = localChannel.socket().getPort();
 
-        TcpProxySession session = getSession(sourcePort);
+        final TcpProxySession session = findSession(mappedPort);
         if (session == null) {
-            logger.w("Ignored socket from %d without session", sourcePort);
+            logger.w("Ignored socket from %d without session", mappedPort);
             IOUtils.closeQuietly(localChannel);
             return;
         }
 
-        logger.v("Accepted channel from %d, session %08x", sourcePort, session.hashCode());
+        logger.v("Accepted channel from %d, session %08x local:%d -> %s:%d on %s",
+                mappedPort, session.hashCode(), session.getSourcePort(),
+                session.getRemoteAddress().getHostAddress(), session.getRemotePort(),
+                session.loop().getName());
+
+        // 交给会话所在的 worker 循环去建立隧道
+        session.loop().execute(new Runnable() {
+            @Override
+            public void run() {
+                session.accept(localChannel);
+            }
+        });
+    }
 
-        session.accept(localChannel);
+    @Override
+    protected boolean isSessionEvictable(TcpProxySession session) {
+        return super.isSessionEvictable(session) || !session.isAccepted();
     }
 
     @Override
-    protected boolean shouldRecycleSession(TcpProxySession session) {
-        return super.shouldRecycleSession(session) && !session.isAccepted();
+    protected long getSessionTimeout(TcpProxySession session) {
+        if (session.isFinished()) {
+            return TCP_CLOSING_SESSION_TIMEOUT_MS;
+        }
+
+        return session.isAccepted()
+                ? TCP_ESTABLISHED_SESSION_TIMEOUT_MS
+                : super.getSessionTimeout(session);
     }
 
 }
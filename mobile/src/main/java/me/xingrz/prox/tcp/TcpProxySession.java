@@ -23,20 +23,21 @@ import android.net.Uri;
 import org.apache.commons.io.IOUtils;
 
 import java.io.IOException;
-import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
+import java.util.Arrays;
 
 import me.xingrz.prox.ProxVpnService;
-import me.xingrz.prox.internet.IpUtils;
 import me.xingrz.prox.logging.FormattingLogger;
 import me.xingrz.prox.logging.FormattingLoggers;
 import me.xingrz.prox.pac.AutoConfigManager;
 import me.xingrz.prox.tcp.http.HttpConnectHandler;
+import me.xingrz.prox.tcp.http.HttpHeaderParser;
 import me.xingrz.prox.tcp.tunnel.IncomingTunnel;
 import me.xingrz.prox.tcp.tunnel.OutgoingTunnel;
 import me.xingrz.prox.transport.AbstractTransportProxy;
+import me.xingrz.prox.transport.EventLoop;
+import me.xingrz.prox.transport.TimerWheel;
 import me.xingrz.prox.udp.dns.DnsReverseCache;
 
 public class TcpProxySession extends AbstractTransportProxy.Session {
@@ -44,16 +45,90 @@ public class TcpProxySession extends AbstractTransportProxy.Session {
     private IncomingTunnel incomingTunnel;
     private OutgoingTunnel outgoingTunnel;
 
+    private SocketTuner socketTuner;
+
     private InetSocketAddress destination;
 
+    /**
+     * 是否经由代理连接，直连超时时才把远端记入黑名单
+     */
+    private boolean proxied;
+
+    private final long connectTimeoutMs;
+
+    /**
+     * 经由 HTTP 代理时是否不等 CONNECT 的回应就把客户端的数据一起发出
+     */
+    private final boolean optimisticConnect;
+
+    private final TimerWheel.Timeout connectTimeout = new TimerWheel.Timeout(new Runnable() {
+        @Override
+        public void run() {
+            onConnectTimeout();
+        }
+    });
+
+    /**
+     * 从接受连接起等待客户端数据来找 Host 的期限，0 表示跳过嗅探
+     */
+    private final long sniffTimeoutMs;
+
+    private final TimerWheel.Timeout sniffTimeout = new TimerWheel.Timeout(new Runnable() {
+        @Override
+        public void run() {
+            if (!closed && incomingTunnel != null) {
+                logger.v("Sniffing timed out after %d ms", sniffTimeoutMs);
+                incomingTunnel.finishSniffing();
+            }
+        }
+    });
+
+    private final ConnectScheduler scheduler;
+
+    /**
+     * 首包嗅探出的协议，用来给会话分级
+     */
+    private HttpHeaderParser.Protocol protocol = HttpHeaderParser.Protocol.UNKNOWN;
+
+    /**
+     * 入队前在会话所在的事件循环里定下，之后只在调度器的锁内读
+     */
+    ConnectScheduler.Priority priority = ConnectScheduler.Priority.NORMAL;
+
+    /**
+     * 在 {@link ConnectScheduler} 中等待时所在的目标、链表指针和入队时间，以及放行后占用名额的目标，
+     * 都只在调度器的锁内访问
+     */
+    long enqueuedAt;
+    ConnectScheduler.Destination queuedAt;
+    TcpProxySession queuePrev;
+    TcpProxySession queueNext;
+    ConnectScheduler.Destination executedAt;
+
     private boolean accepted;
 
-    private volatile boolean executed;
+    /**
+     * 是否已经被调度器放行并开始连接，之前的超时算作排队超时
+     */
+    private boolean connecting;
+
+    private boolean closed;
 
-    public TcpProxySession(Selector selector, int sourcePort,
-                           InetAddress remoteAddress, int remotePort) {
-        super(selector, sourcePort, remoteAddress, remotePort);
-        destination = new InetSocketAddress(remoteAddress, remotePort);
+    /**
+     * VPN 线程看到的双方 FIN，只在 VPN 线程访问
+     */
+    private boolean localFinSeen;
+    private boolean remoteFinSeen;
+
+    public TcpProxySession(EventLoop loop, int sourcePort, int remoteIp, int remotePort,
+                           ConnectScheduler scheduler, long sniffTimeoutMs, long connectTimeoutMs,
+                           boolean optimisticConnect) {
+        super(loop, sourcePort, remoteIp, remotePort);
+        this.destination = new InetSocketAddress(getRemoteAddress(), remotePort);
+        this.scheduler = scheduler;
+        this.sniffTimeoutMs = sniffTimeoutMs;
+        this.connectTimeoutMs = connectTimeoutMs;
+        this.optimisticConnect = optimisticConnect;
     }
 
     @Override
@@ -61,16 +136,42 @@ public class TcpProxySession extends AbstractTransportProxy.Session {
         return FormattingLoggers.getContextLogger(String.format("%08x", hashCode()));
     }
 
+    /**
+     * 关闭会话，可以从任意线程调用，实际的关闭总在会话所在的事件循环里进行
+     */
     @Override
     public void close() throws IOException {
-        if (executed) {
-            TcpQueue.finish(this);
+        if (loop.inEventLoop() || !loop.isRunning()) {
+            closeInternal();
         } else {
-            dequeue();
+            loop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    closeInternal();
+                }
+            });
         }
+    }
+
+    private void closeInternal() {
+        if (closed) {
+            return;
+        }
+
+        closed = true;
+
+        sniffTimeout.cancel();
+        connectTimeout.cancel();
+
+        scheduler.release(this);
 
         IOUtils.closeQuietly(incomingTunnel);
         IOUtils.closeQuietly(outgoingTunnel);
+
+        if (socketTuner != null) {
+            socketTuner.stop();
+            logger.v("Closed with %s", socketTuner);
+        }
     }
 
     /*public boolean isEstablished() {
@@ -81,20 +182,55 @@ public class TcpProxySession extends AbstractTransportProxy.Session {
         return accepted;
     }
 
+    /**
+     * 记录一方发出了 FIN，只能在 VPN 线程调用
+     *
+     * @param local 是否是本地应用发出的
+     * @return 是否双方都已发出 FIN
+     */
+    public boolean onFin(boolean local) {
+        if (local) {
+            localFinSeen = true;
+        } else {
+            remoteFinSeen = true;
+        }
+
+        return localFinSeen && remoteFinSeen;
+    }
+
+    /**
+     * 接收来自 VPN 的通道并建立隧道，必须在会话所在的事件循环里调用
+     *
+     * @param localChannel 来自 VPN 的通道
+     */
     public void accept(SocketChannel localChannel) {
+        if (closed) {
+            logger.v("Session closed before accepted, drop channel");
+            IOUtils.closeQuietly(localChannel);
+            return;
+        }
+
         accepted = true;
 
-        incomingTunnel = new IncomingTunnel(selector, localChannel, String.format("%08x", hashCode())) {
+        // 趁嗅探的时候在后台查出所属应用
+        scheduler.getClassifier().prefetch(this);
+
+        incomingTunnel = new IncomingTunnel(loop, localChannel, String.format("%08x", hashCode())) {
             @Override
-            protected void onParsedHost(String host) {
+            protected void onParsedHost(HttpHeaderParser.Protocol protocol, String host) {
+                sniffTimeout.cancel();
+
+                TcpProxySession.this.protocol = protocol;
+
                 host = lookup(host);
 
                 if (host == null) {
                     Uri lastUsed = AutoConfigManager.getInstance().getLastUsedProxy();
-                    if (Blacklist.contains(getRemoteAddress()) && lastUsed != null) {
+                    InetSocketAddress lastUsedAddress = AutoConfigManager.getInstance().getLastUsedProxyAddress();
+                    if (Blacklist.contains(getRemoteAddress()) && lastUsed != null && lastUsedAddress != null) {
                         logger.v("Remote %s is in black list, using last used proxy %s",
                                 getRemoteAddress().getHostAddress(), lastUsed.toString());
-                        setDestination(lastUsed);
+                        setDestination(lastUsed, lastUsedAddress);
                     }
 
                     enqueue();
@@ -102,23 +238,52 @@ public class TcpProxySession extends AbstractTransportProxy.Session {
                     DnsReverseCache.put(getRemoteAddress(), host);
                     AutoConfigManager.getInstance().lookup(host, new AutoConfigManager.ProxyLookupCallback() {
                         @Override
-                        public void onProxyLookup(Uri proxy) {
-                            if (proxy != null) {
-                                setDestination(proxy);
-                            }
-
-                            enqueue();
+                        public void onProxyLookup(final Uri proxy, final InetSocketAddress address) {
+                            // 回调在 PAC 线程，代理地址已经在这里解析好，只把结果切回会话所在的事件循环
+                            loop.execute(new Runnable() {
+                                @Override
+                                public void run() {
+                                    if (closed) {
+                                        return;
+                                    }
+
+                                    if (proxy != null) {
+                                        setDestination(proxy, address);
+                                    }
+
+                                    enqueue();
+                                }
+                            });
                         }
                     });
                 }
             }
+
+            @Override
+            protected void onClose() {
+                // 两个方向都结束或出错时隧道会一起关闭，这时就可以释放连接队列的名额了
+                closeInternal();
+            }
         };
 
         logger.v("Established incoming tunnel local:%d <=> proxy:%d",
                 getSourcePort(), incomingTunnel.socket().getLocalPort());
 
         try {
-            outgoingTunnel = new OutgoingTunnel(selector, String.format("%08x", hashCode()));
+            outgoingTunnel = new OutgoingTunnel(loop, String.format("%08x", hashCode())) {
+                @Override
+                protected void onEstablished() {
+                    connectTimeout.cancel();
+                    scheduler.onEstablished(TcpProxySession.this, getConnectElapsed());
+                }
+
+                @Override
+                protected void onConnectFailed() {
+                    if (!closed) {
+                        scheduler.onFailure(TcpProxySession.this);
+                    }
+                }
+            };
         } catch (IOException e) {
             logger.w(e, "Failed to issue outgoing tunnel, close");
             IOUtils.closeQuietly(this);
@@ -133,17 +298,30 @@ public class TcpProxySession extends AbstractTransportProxy.Session {
         incomingTunnel.setBrother(outgoingTunnel);
         outgoingTunnel.setBrother(incomingTunnel);
 
+        socketTuner = new SocketTuner(logger, loop, incomingTunnel, outgoingTunnel);
+        socketTuner.start();
+
+        // SSH、SMTP 这类服务端先说话的协议，客户端在连上远端之前什么也不会发，所以从这里开始计时，
+        // 到期就按 IP 和端口路由，马上连接
+        if (sniffTimeoutMs > 0) {
+            loop.schedule(sniffTimeout, sniffTimeoutMs);
+        } else {
+            logger.v("Port %d bypasses sniffing", getRemotePort());
+            incomingTunnel.finishSniffing();
+        }
+
         incomingTunnel.beginReceiving();
     }
 
     private String lookup(String host) {
         if (host != null) {
             DnsReverseCache.put(getRemoteAddress(), host);
-            logger.v("Parsed HTTP Host: %s", host);
+            logger.v("Parsed %s host: %s, ALPN %s",
+                    protocol, host, Arrays.toString(incomingTunnel.getAlpnProtocols()));
             return host;
         }
 
-        host = DnsReverseCache.lookup(IpUtils.toInteger(getRemoteAddress()));
+        host = DnsReverseCache.lookup(getRemoteIp());
         if (host != null) {
             logger.v("Host DNS reverse lookup %s : %s", getRemoteAddress().getHostAddress(), host);
             return host;
@@ -153,14 +331,21 @@ public class TcpProxySession extends AbstractTransportProxy.Session {
         return null;
     }
 
-    public void setDestination(Uri proxy) {
+    /**
+     * 改为经由代理连接，在会话所在的事件循环里调用
+     *
+     * @param proxy   代理
+     * @param address 代理解析好的地址，这里不再做 DNS 查询
+     */
+    public void setDestination(Uri proxy, InetSocketAddress address) {
         if (proxy.getScheme().equals(AutoConfigManager.PROXY_TYPE_HTTP)) {
             outgoingTunnel.setProxy(new HttpConnectHandler(outgoingTunnel,
-                    getRemoteAddress().getHostAddress(), getRemotePort()));
+                    getRemoteAddress().getHostAddress(), getRemotePort(), optimisticConnect));
 
             logger.v("Use HTTP proxy %s:%d", proxy.getHost(), proxy.getPort());
 
-            destination = new InetSocketAddress(proxy.getHost(), proxy.getPort());
+            destination = address;
+            proxied = true;
         } else {
             logger.v("Unsupported proxy scheme %s, ignored", proxy.getScheme());
         }
@@ -170,31 +355,86 @@ public class TcpProxySession extends AbstractTransportProxy.Session {
         return destination;
     }
 
+    public boolean isProxied() {
+        return proxied;
+    }
+
+    public HttpHeaderParser.Protocol getProtocol() {
+        return protocol;
+    }
+
     /**
-     * 将这个请求加入队列
+     * 分级后将这个请求加入队列
      */
     private void enqueue() {
-        TcpQueue.queue(this);
+        priority = scheduler.getClassifier().classify(this);
+
+        // 排队的会话攥着首包的分段，不能无限期等下去，放行后再重新掐表
+        loop.schedule(connectTimeout, connectTimeoutMs);
+
+        scheduler.queue(this);
     }
 
     /**
-     * 从队列中移除请求
+     * 开始连接远端，由 {@link ConnectScheduler} 调用，可以来自任意线程
      */
-    private void dequeue() {
-        TcpQueue.remove(this);
+    public void connect() {
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                connectInternal();
+            }
+        });
     }
 
-    public void connect() {
-        executed = true;
+    /**
+     * 排队或连接的期限到了还没建立，放弃这个会话，释放连接队列的名额
+     */
+    private void onConnectTimeout() {
+        if (closed || outgoingTunnel.isEstablished()) {
+            return;
+        }
+
+        if (!connecting) {
+            logger.w("Waited in connect queue for %s:%d over %d ms, close",
+                    destination.getHostString(), destination.getPort(), connectTimeoutMs);
+            IOUtils.closeQuietly(this);
+            return;
+        }
+
+        logger.w("Connecting %s:%d timed out after %d ms, close",
+                destination.getHostString(), destination.getPort(), connectTimeoutMs);
+
+        if (!proxied) {
+            Blacklist.countUp(getRemoteAddress());
+        }
+
+        scheduler.onFailure(this);
+
+        IOUtils.closeQuietly(this);
+    }
+
+    private void connectInternal() {
+        if (closed) {
+            return;
+        }
+
+        connecting = true;
 
         try {
             outgoingTunnel.connect(destination);
         } catch (IOException e) {
             logger.w(e, "Error connecting outgoing tunnel to remote host");
+            scheduler.onFailure(this);
             IOUtils.closeQuietly(this);
             return;
         }
 
+        // 非阻塞的 connect 不会自己超时，由事件循环来掐表
+        if (!outgoingTunnel.isEstablished()) {
+            loop.schedule(connectTimeout, connectTimeoutMs);
+        }
+
         logger.v("Tunneling local:%d <=> in:%d <=> out:%d <=> %s:%d",
                 getSourcePort(),
                 incomingTunnel.socket().getLocalPort(), outgoingTunnel.socket().getLocalPort(),
@@ -19,6 +19,7 @@
 package me.xingrz.prox.tcp.http;
 
 import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 
 import me.xingrz.prox.BuildConfig;
 import me.xingrz.prox.logging.FormattingLogger;
@@ -26,46 +27,207 @@ import me.xingrz.prox.logging.FormattingLoggers;
 import me.xingrz.prox.tcp.tunnel.ProxyHandler;
 import me.xingrz.prox.tcp.tunnel.RemoteTunnel;
 
+/**
+ * 通过 HTTP 代理的 CONNECT 方法建立隧道
+ * <p/>
+ * 代理的回应逐字节解析，可以跨多次读入；状态行和所有头部都会被消化掉，不会漏给客户端，
+ * 紧跟在头部之后的数据属于远端，原样留给客户端。
+ */
 public class HttpConnectHandler extends ProxyHandler {
 
     private static final FormattingLogger logger = FormattingLoggers.getContextLogger();
 
-    private static final String HTTP_CONNECT = "CONNECT %s:%d HTTP/1.1\r\n" +
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private static final byte[] CONNECT_PREFIX = "CONNECT ".getBytes(ASCII);
+
+    private static final byte[] CONNECT_SUFFIX = (" HTTP/1.1\r\n" +
             "Proxy-Connection: keep-alive\r\n" +
             "User-Agent: prox/" + BuildConfig.VERSION_NAME + "\r\n" +
-            "\r\n";
+            "\r\n").getBytes(ASCII);
+
+    private static final byte[] HTTP_VERSION_PREFIX = "HTTP/1.".getBytes(ASCII);
+
+    /**
+     * 回应头部的长度上限，超过了就当作代理出了问题
+     */
+    private static final int MAX_RESPONSE_LENGTH = 8192;
+
+    private static final int STATE_VERSION = 0;
+    private static final int STATE_MINOR_VERSION = 1;
+    private static final int STATE_STATUS_SPACE = 2;
+    private static final int STATE_STATUS_CODE = 3;
+    private static final int STATE_REASON = 4;
+    private static final int STATE_HEADER_START = 5;
+    private static final int STATE_HEADER = 6;
+    private static final int STATE_END = 7;
 
     private final String host;
     private final int port;
+    private final boolean optimistic;
+
+    private int state = STATE_VERSION;
+    private int matched;
+    private int statusCode;
+    private int responseLength;
 
     private boolean established = false;
+    private boolean failed = false;
 
     public HttpConnectHandler(RemoteTunnel remoteTunnel, String host, int port) {
+        this(remoteTunnel, host, port, false);
+    }
+
+    /**
+     * @param optimistic 是否不等代理回应就把客户端的数据跟在 CONNECT 后面一起发出
+     */
+    public HttpConnectHandler(RemoteTunnel remoteTunnel, String host, int port, boolean optimistic) {
         super(remoteTunnel);
         this.host = host;
         this.port = port;
+        this.optimistic = optimistic;
     }
 
     @Override
     protected ByteBuffer handshake() {
-        return ByteBuffer.wrap(String.format(HTTP_CONNECT, host, port).getBytes());
+        // CONNECT host:port HTTP/1.1，端口不超过 5 位
+        ByteBuffer buffer = ByteBuffer.allocate(CONNECT_PREFIX.length + host.length() + 6 + CONNECT_SUFFIX.length);
+        buffer.put(CONNECT_PREFIX);
+
+        for (int i = 0; i < host.length(); i++) {
+            buffer.put((byte) host.charAt(i));
+        }
+
+        buffer.put((byte) ':');
+
+        int divisor = 1;
+        while (divisor * 10 <= port) {
+            divisor *= 10;
+        }
+
+        for (; divisor > 0; divisor /= 10) {
+            buffer.put((byte) ('0' + port / divisor % 10));
+        }
+
+        buffer.put(CONNECT_SUFFIX);
+        buffer.flip();
+        return buffer;
+    }
+
+    @Override
+    protected boolean isOptimistic() {
+        return optimistic;
     }
 
     @Override
     protected boolean establish(ByteBuffer buffer) {
-        String response = new String(buffer.array(), buffer.position(), 12);
-        if (response.matches("^HTTP/1.[01] 200$")) {
+        if (established || failed) {
+            return established;
+        }
+
+        int limit = buffer.limit();
+        int i = buffer.position();
+
+        for (; i < limit && state != STATE_END; i++) {
+            byte b = buffer.get(i);
+
+            if (++responseLength > MAX_RESPONSE_LENGTH) {
+                return fail("response too long");
+            }
+
+            switch (state) {
+                case STATE_VERSION:
+                    if (b != HTTP_VERSION_PREFIX[matched]) {
+                        return fail("not an HTTP response");
+                    }
+
+                    if (++matched == HTTP_VERSION_PREFIX.length) {
+                        state = STATE_MINOR_VERSION;
+                    }
+                    break;
+
+                case STATE_MINOR_VERSION:
+                    if (b != '0' && b != '1') {
+                        return fail("unsupported HTTP version");
+                    }
+
+                    state = STATE_STATUS_SPACE;
+                    break;
+
+                case STATE_STATUS_SPACE:
+                    if (b != ' ') {
+                        return fail("malformed status line");
+                    }
+
+                    matched = 0;
+                    state = STATE_STATUS_CODE;
+                    break;
+
+                case STATE_STATUS_CODE:
+                    if (b < '0' || b > '9') {
+                        return fail("malformed status code");
+                    }
+
+                    statusCode = statusCode * 10 + (b - '0');
+
+                    if (++matched == 3) {
+                        if (statusCode < 200 || statusCode >= 300) {
+                            return fail("status " + statusCode);
+                        }
+
+                        state = STATE_REASON;
+                    }
+                    break;
+
+                case STATE_REASON:
+                    if (b == '\n') {
+                        state = STATE_HEADER_START;
+                    }
+                    break;
+
+                case STATE_HEADER_START:
+                    if (b == '\n') {
+                        state = STATE_END;
+                    } else if (b != '\r') {
+                        state = STATE_HEADER;
+                    }
+                    break;
+
+                case STATE_HEADER:
+                    if (b == '\n') {
+                        state = STATE_HEADER_START;
+                    }
+                    break;
+            }
+        }
+
+        // 回应的部分都消化掉，剩下的（如果有）是远端的数据
+        buffer.position(i);
+
+        if (state == STATE_END) {
+            logger.v("Proxy established %s:%d with status %d", host, port, statusCode);
             established = true;
         }
 
         return established;
     }
 
+    private boolean fail(String reason) {
+        logger.w("Proxy refused CONNECT %s:%d: %s", host, port, reason);
+        failed = true;
+        return false;
+    }
+
     @Override
     protected boolean isEstablished() {
         return established;
     }
 
+    @Override
+    protected boolean isFailed() {
+        return failed;
+    }
+
     @Override
     protected void beforeSending(ByteBuffer buffer) {
     }
@@ -19,28 +19,56 @@
 package me.xingrz.prox.tcp.http;
 
 import java.nio.ByteBuffer;
-import java.util.ArrayList;
-import java.util.List;
-
-import me.xingrz.prox.logging.FormattingLogger;
-import me.xingrz.prox.logging.FormattingLoggers;
+import java.nio.charset.Charset;
 
+/**
+ * 从客户端发来的头几个包里找出目标主机名
+ * <p/>
+ * 每个实例对应一条连接，可以分多次喂入：每次都传入从头累积到现在的全部数据，
+ * 解析会从上次停下的地方继续，不会重新扫描已经看过的部分。
+ */
 public class HttpHeaderParser {
 
-    private static final FormattingLogger logger = FormattingLoggers.getContextLogger();
+    private static final Charset ASCII = Charset.forName("US-ASCII");
 
-    private static final List<String> SUPPORT_HTTP_METHOD = new ArrayList<>();
+    private static final byte[][] SUPPORT_HTTP_METHOD = {
+            "GET".getBytes(ASCII),
+            "POST".getBytes(ASCII),
+            "PUT".getBytes(ASCII),
+            "DELETE".getBytes(ASCII),
+            "HEAD".getBytes(ASCII),
+            "OPTIONS".getBytes(ASCII),
+            "TRACE".getBytes(ASCII),
+            "CONNECT".getBytes(ASCII),
+    };
 
-    static {
-        SUPPORT_HTTP_METHOD.add("GET");
-        SUPPORT_HTTP_METHOD.add("POST");
-        SUPPORT_HTTP_METHOD.add("PUT");
-        SUPPORT_HTTP_METHOD.add("DELETE");
-        SUPPORT_HTTP_METHOD.add("HEAD");
-        SUPPORT_HTTP_METHOD.add("OPTIONS");
-        SUPPORT_HTTP_METHOD.add("TRACE");
-        SUPPORT_HTTP_METHOD.add("CONNECT");
-    }
+    private static final int METHOD_CONNECT = SUPPORT_HTTP_METHOD.length - 1;
+
+    private static final int MAX_METHOD_LENGTH = 7;
+
+    private static final byte[] HTTP_VERSION_PREFIX = "HTTP/1.".getBytes(ASCII);
+
+    private static final byte[] HEADER_HOST = "host".getBytes(ASCII);
+
+    /**
+     * 逐字节解析 HTTP 请求头的状态
+     */
+    private static final int STATE_METHOD = 0;
+    private static final int STATE_TARGET = 1;
+    private static final int STATE_VERSION = 2;
+    private static final int STATE_REQUEST_LINE_END = 3;
+    private static final int STATE_HEADER_START = 4;
+    private static final int STATE_HEADER_NAME = 5;
+    private static final int STATE_HEADER_VALUE_START = 6;
+    private static final int STATE_HEADER_VALUE = 7;
+    private static final int STATE_SKIP_LINE = 8;
+
+    /**
+     * 解析出的 Host 按字节哈希缓存，同一个站点的连接复用同一个字符串，命中时不分配内存
+     * 多个线程并发读写只会造成多余的分配，不会出错
+     */
+    private static final int HOST_CACHE_SIZE = 256;
+    private static final String[] hostCache = new String[HOST_CACHE_SIZE];
 
     private static final byte HTTP_GET = 'G';
     private static final byte HTTP_POST_OR_PUT = 'P';
@@ -51,11 +79,27 @@ public class HttpHeaderParser {
     private static final byte HTTP_CONNECT = 'C';
 
     private static final byte TLS_HANDSHAKE = 0x16;
-    private static final byte TLS_MESSAGE_CLIENT_HELLO = 0X01;
-    private static final short TLS_EXTENSION_SERVER_NAME = 0x0000;
-    private static final byte TLS_SNI_HOST_NAME = 0x00;
 
-    public static String parseHost(ByteBuffer buffer) {
+    /**
+     * 从首个数据包嗅探出的协议
+     */
+    public enum Protocol {
+        HTTP,
+        TLS,
+        UNKNOWN
+    }
+
+    /**
+     * 只看首字节粗略判断协议，不做完整解析
+     *
+     * @param buffer 从 0 开始的缓冲区
+     * @return 协议
+     */
+    public static Protocol sniffProtocol(ByteBuffer buffer) {
+        if (buffer.limit() == 0) {
+            return Protocol.UNKNOWN;
+        }
+
         switch (buffer.get(0)) {
             case HTTP_GET:
             case HTTP_POST_OR_PUT:
@@ -64,158 +108,320 @@ public class HttpHeaderParser {
             case HTTP_OPTIONS:
             case HTTP_TRACE:
             case HTTP_CONNECT:
-                return parseHttpHost(buffer);
+                return Protocol.HTTP;
             case TLS_HANDSHAKE:
-                return parseTlsHost(buffer);
+                return Protocol.TLS;
             default:
-                return null;
+                return Protocol.UNKNOWN;
         }
     }
 
-    private static String parseHttpHost(ByteBuffer buffer) {
-        byte[] bytes = new byte[buffer.remaining()];
-        buffer.get(bytes);
+    /**
+     * 一次性解析，数据不完整时返回 {@code null}
+     *
+     * @param buffer 从 0 开始的缓冲区
+     * @return Host 或 {@code null}
+     */
+    public static String parseHost(ByteBuffer buffer) {
+        HttpHeaderParser parser = new HttpHeaderParser();
+        parser.parse(buffer);
+        return parser.getHost();
+    }
 
-        String[] headers = new String(bytes).split("\r\n");
-        if (headers.length < 2) {
-            // CONNECT www.google.com:443 HTTP/1.1\r\n
-            // \r\n
-            return null;
-        }
+    private Protocol protocol;
+    private String host;
+    private boolean done;
 
-        String[] request = headers[0].split(" ");
-        if (request.length != 3) {
-            return null;
-        }
+    /**
+     * HTTP 状态机的状态，以及下次从哪里继续扫描
+     */
+    private int state = STATE_METHOD;
+    private int offset;
 
-        if (!SUPPORT_HTTP_METHOD.contains(request[0]) || !request[2].startsWith("HTTP/1.")) {
-            return null;
-        }
+    private TlsClientHelloParser tls;
 
-        if ("CONNECT".equals(request[0])) {
-            return request[1].split(":")[0];
+    private boolean connect;
+    private int targetStart;
+    private int targetEnd;
+    private int matched;
+    private int valueStart;
+
+    /**
+     * 喂入从头累积到现在的数据
+     *
+     * @param buffer 从 0 开始的缓冲区，前面的内容必须和上次传入的一致
+     * @return 是否已有结论，此时 {@link #getHost()} 可能仍是 {@code null}
+     */
+    public boolean parse(ByteBuffer buffer) {
+        if (done) {
+            return true;
         }
 
-        for (int i = 1; i < headers.length - 1; i++) {
-            String[] field = headers[i].split(":");
-            if (field[0].toLowerCase().equals("host")) {
-                return field[1].trim();
+        if (protocol == null) {
+            if (buffer.limit() == 0) {
+                return false;
             }
+
+            protocol = sniffProtocol(buffer);
+        }
+
+        switch (protocol) {
+            case HTTP:
+                return parseHttpHost(buffer);
+            case TLS:
+                if (tls == null) {
+                    tls = new TlsClientHelloParser();
+                }
+
+                return tls.parse(buffer) && finish(tls.getServerName());
+            default:
+                return finish(null);
         }
+    }
 
-        return null;
+    /**
+     * @return 是否已有结论
+     */
+    public boolean isDone() {
+        return done;
     }
 
     /**
-     * 尝试从 TLS client hello 中的 SNI 读出 server_name
-     * http://tools.ietf.org/html/rfc4366#section-3.1
-     *
-     * @param buffer 缓冲区
-     * @return Host 或 {@value null}
+     * @return 嗅探出的协议，还没收到数据时为 {@link Protocol#UNKNOWN}
      */
-    private static String parseTlsHost(ByteBuffer buffer) {
-        if (buffer.limit() <= 5) {
-            return null;
-        }
+    public Protocol getProtocol() {
+        return protocol == null ? Protocol.UNKNOWN : protocol;
+    }
 
-        // Handshake (1) + SSL Major Version (1) + SSL Minor Version (1)
-        buffer.position(3);
+    /**
+     * @return 解析出的 Host，没有或还没解析到时为 {@code null}
+     */
+    public String getHost() {
+        return host;
+    }
 
-        // Total Length
-        if (buffer.getShort() != buffer.remaining()) {
-            logger.v("Not a SSL handshake: wrong length");
-            return null;
-        }
+    /**
+     * @return TLS 客户端通过 ALPN 提供的协议，不是 TLS 或没有时为空数组
+     */
+    public String[] getAlpnProtocols() {
+        return tls == null ? new String[0] : tls.getAlpnProtocols();
+    }
 
-        int skipping;
+    private boolean finish(String host) {
+        this.host = host;
+        this.done = true;
+        return true;
+    }
 
-        try {
-            while (buffer.hasRemaining()) {
-                // Message Type
-                byte messageType = buffer.get();
+    /**
+     * 单趟扫描请求行和头部，只认请求方法和不区分大小写的 Host 字段，全程不复制缓冲区
+     * CONNECT 请求直接取请求行里的目标
+     *
+     * @param buffer 从 0 开始的缓冲区
+     * @return 是否已有结论
+     */
+    @SuppressWarnings("fallthrough")
+    private boolean parseHttpHost(ByteBuffer buffer) {
+        int limit = buffer.limit();
+
+        for (int i = offset; i < limit; i++) {
+            byte b = buffer.get(i);
+
+            switch (state) {
+                case STATE_METHOD:
+                    if (b == ' ') {
+                        int method = matchMethod(buffer, i);
+                        if (method < 0) {
+                            return finish(null);
+                        }
 
-                // Message Length
-                skipping = (0xFF0000 & (buffer.get() << 16))
-                        | (0x00FF00 & (buffer.get() << 8))
-                        | (0x0000FF & buffer.get());
+                        connect = method == METHOD_CONNECT;
+                        targetStart = i + 1;
+                        state = STATE_TARGET;
+                    } else if (i >= MAX_METHOD_LENGTH || b < 'A' || b > 'Z') {
+                        return finish(null);
+                    }
+                    break;
 
-                if (skipping > buffer.remaining()) {
-                    logger.v("Not a SSL handshake: message length out of bound");
-                    return null;
-                }
+                case STATE_TARGET:
+                    if (b == ' ') {
+                        if (i == targetStart) {
+                            return finish(null);
+                        }
 
-                if (messageType != TLS_MESSAGE_CLIENT_HELLO) {
-                    buffer.position(buffer.position() + skipping);
-                    continue;
-                }
+                        targetEnd = i;
+                        matched = 0;
+                        state = STATE_VERSION;
+                    } else if (b == '\r' || b == '\n') {
+                        return finish(null);
+                    }
+                    break;
 
-                // TLS Version
-                buffer.position(buffer.position() + 2);
+                case STATE_VERSION:
+                    if (b != HTTP_VERSION_PREFIX[matched]) {
+                        return finish(null);
+                    }
 
-                // Random
-                buffer.position(buffer.position() + 32);
+                    if (++matched == HTTP_VERSION_PREFIX.length) {
+                        state = STATE_REQUEST_LINE_END;
+                    }
+                    break;
 
-                // Session ID
-                skipping = buffer.get();
-                buffer.position(buffer.position() + skipping);
+                case STATE_REQUEST_LINE_END:
+                    if (b == '\n') {
+                        if (connect) {
+                            // CONNECT www.google.com:443 HTTP/1.1
+                            return finish(toHost(buffer, targetStart, targetEnd));
+                        }
 
-                // Cipher Suites
-                skipping = buffer.getShort();
-                buffer.position(buffer.position() + skipping);
+                        state = STATE_HEADER_START;
+                    }
+                    break;
 
-                // Compression Methods
-                skipping = buffer.get();
-                buffer.position(buffer.position() + skipping);
+                case STATE_HEADER_START:
+                    if (b == '\r') {
+                        break;
+                    }
 
-                // Extensions
-                buffer.position(buffer.position() + 2);
-                while (buffer.hasRemaining()) {
-                    // Extension Type
-                    short extensionType = buffer.getShort();
+                    if (b == '\n') {
+                        // 头部结束了也没有 Host
+                        return finish(null);
+                    }
 
-                    // Extension Length
-                    skipping = buffer.getShort();
+                    matched = 0;
+                    state = STATE_HEADER_NAME;
+                    // fall through
+
+                case STATE_HEADER_NAME:
+                    if (b == ':') {
+                        state = matched == HEADER_HOST.length
+                                ? STATE_HEADER_VALUE_START
+                                : STATE_SKIP_LINE;
+                    } else if (b == '\n') {
+                        state = STATE_HEADER_START;
+                    } else if (matched >= 0 && matched < HEADER_HOST.length
+                            && (b | 0x20) == HEADER_HOST[matched]) {
+                        matched++;
+                    } else {
+                        matched = -1;
+                    }
+                    break;
 
-                    if (extensionType != TLS_EXTENSION_SERVER_NAME) {
-                        buffer.position(buffer.position() + skipping);
-                        continue;
+                case STATE_HEADER_VALUE_START:
+                    if (b == ' ' || b == '\t') {
+                        break;
                     }
 
-                    // Server Name list
-                    buffer.position(buffer.position() + 2);
-                    while (buffer.hasRemaining()) {
-                        // Name Type
-                        byte nameType = buffer.get();
+                    valueStart = i;
+                    state = STATE_HEADER_VALUE;
+                    // fall through
 
-                        // Name Length
-                        skipping = buffer.getShort();
+                case STATE_HEADER_VALUE:
+                    if (b == '\r' || b == '\n') {
+                        return finish(toHost(buffer, valueStart, i));
+                    }
+                    break;
 
-                        if (nameType != TLS_SNI_HOST_NAME) {
-                            buffer.position(buffer.position() + skipping);
-                            continue;
-                        }
+                case STATE_SKIP_LINE:
+                    if (b == '\n') {
+                        state = STATE_HEADER_START;
+                    }
+                    break;
+            }
+        }
 
-                        if (buffer.remaining() < skipping) {
-                            logger.v("Not a SSL handshake: server name length out of bound");
-                            return null;
-                        }
+        // 请求头还不完整，等下次喂入更多数据
+        offset = limit;
+        return false;
+    }
 
-                        byte[] bytes = new byte[skipping];
-                        buffer.get(bytes);
+    /**
+     * @param end 请求方法之后的空格所在位置
+     * @return 请求方法在 {@link #SUPPORT_HTTP_METHOD} 中的下标，不支持时为 -1
+     */
+    private static int matchMethod(ByteBuffer buffer, int end) {
+        for (int m = 0; m < SUPPORT_HTTP_METHOD.length; m++) {
+            byte[] method = SUPPORT_HTTP_METHOD[m];
+            if (method.length != end) {
+                continue;
+            }
 
-                        String name = new String(bytes);
-                        logger.v("Found SNI: %s", name);
-                        return name;
-                    }
+            int i = 0;
+            while (i < end && buffer.get(i) == method[i]) {
+                i++;
+            }
+
+            if (i == end) {
+                return m;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * 从 host[:port] 里取出 host，IPv6 字面量去掉方括号
+     */
+    private static String toHost(ByteBuffer buffer, int start, int end) {
+        while (end > start && (buffer.get(end - 1) == ' ' || buffer.get(end - 1) == '\t')) {
+            end--;
+        }
+
+        if (start < end && buffer.get(start) == '[') {
+            int close = start + 1;
+            while (close < end && buffer.get(close) != ']') {
+                close++;
+            }
+
+            start++;
+            end = close;
+        } else {
+            for (int i = start; i < end; i++) {
+                if (buffer.get(i) == ':') {
+                    end = i;
+                    break;
                 }
             }
+        }
 
-            logger.v("No SNI found");
-            return null;
-        } catch (IllegalArgumentException e) {
-            logger.v("Not a SSL handshake: out of bound");
+        if (start >= end) {
             return null;
         }
+
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + buffer.get(i);
+        }
+
+        int slot = (hash ^ (hash >>> 16)) & (HOST_CACHE_SIZE - 1);
+
+        String cached = hostCache[slot];
+        if (cached != null && contentEquals(cached, buffer, start, end)) {
+            return cached;
+        }
+
+        byte[] bytes = new byte[end - start];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = buffer.get(start + i);
+        }
+
+        String host = new String(bytes, ASCII);
+        hostCache[slot] = host;
+        return host;
+    }
+
+    private static boolean contentEquals(String string, ByteBuffer buffer, int start, int end) {
+        if (string.length() != end - start) {
+            return false;
+        }
+
+        for (int i = start; i < end; i++) {
+            if (string.charAt(i - start) != buffer.get(i)) {
+                return false;
+            }
+        }
+
+        return true;
     }
 
 }
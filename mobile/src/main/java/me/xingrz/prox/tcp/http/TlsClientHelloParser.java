@@ -0,0 +1,390 @@
+/*
+ * Copyright (C) 2015 XiNGRZ <chenxingyu92@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package me.xingrz.prox.tcp.http;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import me.xingrz.prox.logging.FormattingLogger;
+import me.xingrz.prox.logging.FormattingLoggers;
+
+/**
+ * 从 TLS ClientHello 里取出 SNI 和 ALPN
+ * <p/>
+ * 和 {@link HttpHeaderParser} 一样可以分多次喂入从头累积的数据。ClientHello 可以跨多个 TLS 记录，
+ * 每次只检查新到齐的记录头，等握手消息所在的记录全部到齐后再顺序解析一遍。
+ * 所有长度都按无符号数处理，越界时只做标记，不靠异常来控制流程。
+ * <p/>
+ * http://tools.ietf.org/html/rfc5246#section-7.4.1.2
+ * http://tools.ietf.org/html/rfc6066#section-3
+ * http://tools.ietf.org/html/rfc7301#section-3.1
+ *
+ * @author XiNGRZ
+ */
+public class TlsClientHelloParser {
+
+    private static final FormattingLogger logger = FormattingLoggers.getContextLogger();
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private static final int RECORD_HEADER_LENGTH = 5;
+    private static final int HANDSHAKE_HEADER_LENGTH = 4;
+
+    private static final int CONTENT_TYPE_HANDSHAKE = 0x16;
+    private static final int HANDSHAKE_CLIENT_HELLO = 0x01;
+
+    /**
+     * 记录长度上限 2^14，再留出压缩和加密的余量
+     */
+    private static final int MAX_RECORD_LENGTH = 16384 + 2048;
+
+    /**
+     * 握手消息长度上限，再大就不是正常的 ClientHello 了
+     */
+    private static final int MAX_HANDSHAKE_LENGTH = 65536;
+
+    private static final int EXTENSION_SERVER_NAME = 0x0000;
+    private static final int EXTENSION_ALPN = 0x0010;
+
+    private static final int SERVER_NAME_HOST_NAME = 0x00;
+
+    public static final String ALPN_HTTP_2 = "h2";
+    public static final String ALPN_HTTP_1_1 = "http/1.1";
+
+    private static final byte[] ALPN_HTTP_2_BYTES = ALPN_HTTP_2.getBytes(ASCII);
+    private static final byte[] ALPN_HTTP_1_1_BYTES = ALPN_HTTP_1_1.getBytes(ASCII);
+
+    private static final String[] NO_PROTOCOLS = new String[0];
+
+    private boolean done;
+
+    private String serverName;
+    private String[] alpnProtocols = NO_PROTOCOLS;
+
+    /**
+     * 下一个待检查的记录头的位置，以及之前已到齐的记录里握手数据的总量
+     */
+    private int nextRecord;
+    private int handshakeAvailable;
+
+    /**
+     * 握手消息的总长度，包括消息头，还不知道时为 -1
+     */
+    private int handshakeLength = -1;
+
+    /**
+     * 顺序解析用的游标：缓冲区里的位置、当前记录还剩多少字节、已读的握手字节数、是否越界
+     */
+    private ByteBuffer buffer;
+    private int recordsEnd;
+    private int index;
+    private int recordLeft;
+    private int consumed;
+    private boolean malformed;
+
+    /**
+     * 喂入从头累积到现在的数据
+     *
+     * @param buffer 从 0 开始的缓冲区，前面的内容必须和上次传入的一致
+     * @return 是否已有结论，不是合法的 ClientHello 时也算
+     */
+    public boolean parse(ByteBuffer buffer) {
+        if (done) {
+            return true;
+        }
+
+        int limit = buffer.limit();
+
+        while (nextRecord + RECORD_HEADER_LENGTH <= limit) {
+            int type = buffer.get(nextRecord) & 0xFF;
+            int major = buffer.get(nextRecord + 1) & 0xFF;
+            int length = buffer.getShort(nextRecord + 3) & 0xFFFF;
+
+            if (type != CONTENT_TYPE_HANDSHAKE || major != 3
+                    || length == 0 || length > MAX_RECORD_LENGTH) {
+                logger.v("Not a TLS handshake record at %d", nextRecord);
+                return finish();
+            }
+
+            int end = nextRecord + RECORD_HEADER_LENGTH + length;
+            if (end > limit) {
+                break;
+            }
+
+            nextRecord = end;
+            handshakeAvailable += length;
+
+            if (handshakeLength < 0 && handshakeAvailable >= HANDSHAKE_HEADER_LENGTH) {
+                begin(buffer);
+
+                int messageType = u8();
+                int messageLength = u24();
+
+                if (messageType != HANDSHAKE_CLIENT_HELLO || messageLength > MAX_HANDSHAKE_LENGTH) {
+                    logger.v("Not a ClientHello: type %d, length %d", messageType, messageLength);
+                    return finish();
+                }
+
+                handshakeLength = HANDSHAKE_HEADER_LENGTH + messageLength;
+            }
+
+            if (handshakeLength >= 0 && handshakeAvailable >= handshakeLength) {
+                parseClientHello(buffer);
+                return finish();
+            }
+        }
+
+        return false;
+    }
+
+    public boolean isDone() {
+        return done;
+    }
+
+    /**
+     * @return SNI 里的主机名，没有时为 {@code null}
+     */
+    public String getServerName() {
+        return serverName;
+    }
+
+    /**
+     * @return 客户端通过 ALPN 提供的协议，按客户端的偏好排序，没有时为空数组
+     */
+    public String[] getAlpnProtocols() {
+        return alpnProtocols;
+    }
+
+    /**
+     * @return 客户端是否愿意用 HTTP/2
+     */
+    public boolean offersHttp2() {
+        for (String protocol : alpnProtocols) {
+            if (ALPN_HTTP_2.equals(protocol)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private boolean finish() {
+        done = true;
+        buffer = null;
+        return true;
+    }
+
+    private void parseClientHello(ByteBuffer buffer) {
+        begin(buffer);
+
+        // Handshake Type (1) + Length (3)
+        skip(HANDSHAKE_HEADER_LENGTH);
+
+        // Client Version (2) + Random (32)
+        skip(2 + 32);
+
+        // Session ID
+        skip(u8());
+
+        // Cipher Suites
+        skip(u16());
+
+        // Compression Methods
+        skip(u8());
+
+        if (malformed) {
+            logger.v("Malformed ClientHello");
+            return;
+        }
+
+        if (consumed >= handshakeLength) {
+            logger.v("No extensions in ClientHello");
+            return;
+        }
+
+        int extensionsEnd = Math.min(consumed + 2 + u16(), handshakeLength);
+
+        while (!malformed && consumed + 4 <= extensionsEnd) {
+            int type = u16();
+            int length = u16();
+            int end = consumed + length;
+
+            if (end > extensionsEnd) {
+                malformed = true;
+                break;
+            }
+
+            switch (type) {
+                case EXTENSION_SERVER_NAME:
+                    parseServerName(end);
+                    break;
+                case EXTENSION_ALPN:
+                    parseAlpn(end);
+                    break;
+            }
+
+            skip(end - consumed);
+        }
+
+        if (malformed) {
+            logger.v("Malformed ClientHello extensions");
+        }
+
+        logger.v("Found SNI: %s, ALPN: %d protocols", serverName, alpnProtocols.length);
+    }
+
+    private void parseServerName(int end) {
+        int listEnd = Math.min(consumed + 2 + u16(), end);
+
+        while (!malformed && consumed + 3 <= listEnd) {
+            int type = u8();
+            int length = u16();
+
+            if (consumed + length > listEnd) {
+                malformed = true;
+                return;
+            }
+
+            if (type == SERVER_NAME_HOST_NAME && serverName == null && length > 0) {
+                serverName = new String(bytes(length), ASCII);
+            } else {
+                skip(length);
+            }
+        }
+    }
+
+    private void parseAlpn(int end) {
+        int listEnd = Math.min(consumed + 2 + u16(), end);
+
+        // 先数一下有几个，只分配一次数组
+        int start = consumed;
+        int saveIndex = index;
+        int saveRecordLeft = recordLeft;
+
+        int count = 0;
+        while (!malformed && consumed + 1 <= listEnd) {
+            int length = u8();
+            if (length == 0 || consumed + length > listEnd) {
+                malformed = true;
+                return;
+            }
+
+            skip(length);
+            count++;
+        }
+
+        index = saveIndex;
+        recordLeft = saveRecordLeft;
+        consumed = start;
+
+        String[] protocols = new String[count];
+        for (int i = 0; i < count; i++) {
+            protocols[i] = alpnProtocol(bytes(u8()));
+        }
+
+        if (!malformed) {
+            alpnProtocols = protocols;
+        }
+    }
+
+    /**
+     * 常见的协议名直接用常量，不另外分配字符串
+     */
+    private static String alpnProtocol(byte[] name) {
+        if (Arrays.equals(name, ALPN_HTTP_2_BYTES)) {
+            return ALPN_HTTP_2;
+        }
+
+        if (Arrays.equals(name, ALPN_HTTP_1_1_BYTES)) {
+            return ALPN_HTTP_1_1;
+        }
+
+        return new String(name, ASCII);
+    }
+
+    /**
+     * 把游标放到第一个记录的握手数据开头
+     */
+    private void begin(ByteBuffer buffer) {
+        this.buffer = buffer;
+        this.recordsEnd = nextRecord;
+        this.index = RECORD_HEADER_LENGTH;
+        this.recordLeft = buffer.getShort(3) & 0xFFFF;
+        this.consumed = 0;
+        this.malformed = false;
+    }
+
+    /**
+     * 当前记录读完了就跳过下一个记录头
+     *
+     * @return 是否还有数据可读
+     */
+    private boolean ensureRecord() {
+        if (recordLeft > 0) {
+            return true;
+        }
+
+        if (index + RECORD_HEADER_LENGTH > recordsEnd) {
+            malformed = true;
+            return false;
+        }
+
+        recordLeft = buffer.getShort(index + 3) & 0xFFFF;
+        index += RECORD_HEADER_LENGTH;
+        return recordLeft > 0;
+    }
+
+    private int u8() {
+        if (malformed || !ensureRecord()) {
+            return 0;
+        }
+
+        recordLeft--;
+        consumed++;
+        return buffer.get(index++) & 0xFF;
+    }
+
+    private int u16() {
+        return (u8() << 8) | u8();
+    }
+
+    private int u24() {
+        return (u8() << 16) | (u8() << 8) | u8();
+    }
+
+    private void skip(int length) {
+        while (length > 0 && !malformed && ensureRecord()) {
+            int step = Math.min(length, recordLeft);
+            index += step;
+            recordLeft -= step;
+            consumed += step;
+            length -= step;
+        }
+    }
+
+    private byte[] bytes(int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = (byte) u8();
+        }
+        return bytes;
+    }
+
+}
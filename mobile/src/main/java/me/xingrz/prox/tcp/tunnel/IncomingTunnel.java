@@ -19,19 +19,39 @@
 package me.xingrz.prox.tcp.tunnel;
 
 import java.nio.ByteBuffer;
-import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
 
 import me.xingrz.prox.logging.FormattingLogger;
 import me.xingrz.prox.logging.FormattingLoggers;
 import me.xingrz.prox.tcp.http.HttpHeaderParser;
+import me.xingrz.prox.transport.EventLoop;
 
 public class IncomingTunnel extends Tunnel {
 
-    private boolean firstBufferReceived = false;
+    /**
+     * 最多攒这么多数据来找 Host，超过了就不再等
+     */
+    public static final int MAX_SNIFF_SIZE = 16 * 1024;
+
+    /**
+     * 嗅探结束后为 {@code null}
+     */
+    private HttpHeaderParser sniffer = new HttpHeaderParser();
+
+    /**
+     * 嗅探期间数据所在的分段和起点
+     * 远端建立之前发送队列不会被写出，所以读到的数据在分段里原样连续地攒着，每次都可以原地从头看
+     */
+    private ByteBuffer sniffSegment;
+    private int sniffStart;
+
+    /**
+     * TLS 客户端通过 ALPN 提供的协议，嗅探结束后才有
+     */
+    private String[] alpnProtocols = new String[0];
 
-    public IncomingTunnel(Selector selector, SocketChannel channel, String sessionKey) {
-        super(selector, channel, sessionKey);
+    public IncomingTunnel(EventLoop loop, SocketChannel channel, String sessionKey) {
+        super(loop, channel, sessionKey);
     }
 
     @Override
@@ -41,17 +61,49 @@ public class IncomingTunnel extends Tunnel {
 
     @Override
     protected boolean afterReceived(ByteBuffer buffer) {
-        // TODO: 以后要考虑 Header 太长导致 Host 不在第一个 buffer 里的情况
-        if (firstBufferReceived) {
+        if (sniffer == null) {
+            return false;
+        }
+
+        if (sniffSegment == null) {
+            sniffSegment = buffer;
+            sniffStart = buffer.position();
+        } else if (buffer != sniffSegment) {
+            // 读进了新的分段，前后不再连续，就此作罢
+            finishSniffing();
             return false;
         }
 
-        onParsedHost(HttpHeaderParser.parseHost(buffer.asReadOnlyBuffer()));
+        // 解析器按绝对位置读取，所以切出一段从 0 开始的只读视图，包含之前攒下的数据
+        ByteBuffer view = buffer.asReadOnlyBuffer();
+        view.position(sniffStart);
+        view = view.slice();
+
+        if (sniffer.parse(view) || view.limit() >= MAX_SNIFF_SIZE) {
+            finishSniffing();
+        }
 
-        firstBufferReceived = true;
         return false;
     }
 
+    /**
+     * 结束嗅探，用目前解析到的结果回调 {@link #onParsedHost(HttpHeaderParser.Protocol, String)}
+     * 数据不完整、或者客户端一直不说话（服务端先说话的协议）等不下去时由外部调用，已经结束时什么也不做
+     */
+    public void finishSniffing() {
+        if (sniffer == null) {
+            return;
+        }
+
+        HttpHeaderParser parser = sniffer;
+        sniffer = null;
+        sniffSegment = null;
+
+        alpnProtocols = parser.getAlpnProtocols();
+
+        onParsedHost(parser.getProtocol(), parser.getHost());
+    }
+
     @Override
     protected void beforeSending(ByteBuffer buffer) {
     }
@@ -60,12 +112,20 @@ public class IncomingTunnel extends Tunnel {
     protected void onClose() {
     }
 
+    /**
+     * @return TLS 客户端通过 ALPN 提供的协议，可以用来区分 h2 和 http/1.1，没有时为空数组
+     */
+    public String[] getAlpnProtocols() {
+        return alpnProtocols;
+    }
+
     /**
      * 解析完头部
      *
-     * @param host Host 字段，不一定有，可能是 {@code null}
+     * @param protocol 嗅探出的协议
+     * @param host     Host 字段，不一定有，可能是 {@code null}
      */
-    protected void onParsedHost(String host) {
+    protected void onParsedHost(HttpHeaderParser.Protocol protocol, String host) {
     }
 
 }
@@ -22,17 +22,22 @@ import org.apache.commons.io.IOUtils;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.channels.Selector;
 
 import me.xingrz.prox.logging.FormattingLogger;
 import me.xingrz.prox.logging.FormattingLoggers;
+import me.xingrz.prox.transport.EventLoop;
 
 public class OutgoingTunnel extends RemoteTunnel {
 
     private ProxyHandler proxy;
 
-    public OutgoingTunnel(Selector selector, String sessionKey) throws IOException {
-        super(selector, sessionKey);
+    /**
+     * 握手已经排在发送队列的最前面，不等代理回应就可以写出
+     */
+    private boolean optimistic;
+
+    public OutgoingTunnel(EventLoop loop, String sessionKey) throws IOException {
+        super(loop, sessionKey);
     }
 
     @Override
@@ -61,6 +66,14 @@ public class OutgoingTunnel extends RemoteTunnel {
             return;
         }
 
+        if (proxy.isOptimistic()) {
+            // 握手和客户端已经发来的数据在同一次聚集写里发出，省下等代理回应的一个 RTT
+            prepend(handshake);
+            optimistic = true;
+            flush();
+            return;
+        }
+
         if (!writeInternal(handshake)) {
             logger.w("Failed to handshake");
             IOUtils.closeQuietly(this);
@@ -77,11 +90,19 @@ public class OutgoingTunnel extends RemoteTunnel {
             return false;
         }
 
-        if (proxy.establish(buffer)) {
-            establish();
+        if (!proxy.establish(buffer)) {
+            if (proxy.isFailed()) {
+                logger.w("Proxy handshake failed, close");
+                IOUtils.closeQuietly(this);
+            }
+
+            return true;
         }
 
-        return true;
+        establish();
+
+        // 回应之后紧跟着的是远端的数据，交给客户端
+        return !buffer.hasRemaining();
     }
 
     @Override
@@ -89,6 +110,11 @@ public class OutgoingTunnel extends RemoteTunnel {
         return super.isEstablished() && (proxy == null || proxy.isEstablished());
     }
 
+    @Override
+    protected boolean isSendable() {
+        return isEstablished() || (optimistic && channel.isConnected());
+    }
+
     @Override
     protected void onEstablished() {
     }
@@ -30,10 +30,32 @@ public abstract class ProxyHandler {
 
     protected abstract ByteBuffer handshake();
 
+    /**
+     * 是否不等代理回应，就把握手和客户端已经发来的数据一起写出去
+     *
+     * @return 默认不
+     */
+    protected boolean isOptimistic() {
+        return false;
+    }
+
+    /**
+     * 解析代理的回应，可能分多次调用
+     *
+     * @param buffer 收到的数据，属于回应的部分要推进 position 消化掉，建立后剩下的是远端发来的数据
+     * @return 是否已经建立
+     */
     protected abstract boolean establish(ByteBuffer buffer);
 
     protected abstract boolean isEstablished();
 
+    /**
+     * @return 代理是否拒绝了连接，或者回应无法解析
+     */
+    protected boolean isFailed() {
+        return false;
+    }
+
     protected abstract void beforeSending(ByteBuffer buffer);
 
     protected abstract void afterReceived(ByteBuffer buffer);
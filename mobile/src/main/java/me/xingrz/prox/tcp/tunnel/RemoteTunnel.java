@@ -22,19 +22,19 @@ import org.apache.commons.io.IOUtils;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.net.SocketTimeoutException;
-import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
 
 import me.xingrz.prox.selectable.Connectible;
-import me.xingrz.prox.tcp.Blacklist;
+import me.xingrz.prox.transport.EventLoop;
 
 public abstract class RemoteTunnel extends Tunnel implements Connectible {
 
     private InetSocketAddress address;
 
+    private long connectStartedAt;
+    private long connectRtt = -1;
+
     private static SocketChannel makeChannel() throws IOException {
         SocketChannel channel = SocketChannel.open();
         channel.configureBlocking(false);
@@ -42,17 +42,18 @@ public abstract class RemoteTunnel extends Tunnel implements Connectible {
         return channel;
     }
 
-    public RemoteTunnel(Selector selector, String sessionKey) throws IOException {
-        super(selector, makeChannel(), sessionKey);
+    public RemoteTunnel(EventLoop loop, String sessionKey) throws IOException {
+        super(loop, makeChannel(), sessionKey);
     }
 
     public void connect(InetSocketAddress address) throws IOException {
         this.address = address;
+        this.connectStartedAt = System.currentTimeMillis();
 
         if (channel.connect(address)) {
             onConnectedInternal();
         } else {
-            channel.register(selector, SelectionKey.OP_CONNECT, this);
+            updateInterest(SelectionKey.OP_CONNECT, 0);
         }
     }
 
@@ -60,14 +61,11 @@ public abstract class RemoteTunnel extends Tunnel implements Connectible {
     public final void onConnectible(SelectionKey key) {
         try {
             if (channel.finishConnect()) {
+                updateInterest(0, SelectionKey.OP_CONNECT);
                 onConnectedInternal();
             } else {
                 IOUtils.closeQuietly(this);
             }
-        } catch (SocketTimeoutException e) {
-            Blacklist.countUp(address.getAddress());
-            logger.w(e, "Timeout finishing connect");
-            IOUtils.closeQuietly(this);
         } catch (IOException e) {
             logger.w(e, "Error finishing connect");
             IOUtils.closeQuietly(this);
@@ -75,6 +73,7 @@ public abstract class RemoteTunnel extends Tunnel implements Connectible {
     }
 
     private void onConnectedInternal() throws IOException {
+        connectRtt = System.currentTimeMillis() - connectStartedAt;
         onConnected();
         beginReceiving();
         handshake();
@@ -82,17 +81,40 @@ public abstract class RemoteTunnel extends Tunnel implements Connectible {
 
     protected abstract void onConnected();
 
+    /**
+     * 还没建立就由自己关闭了，比如连接被拒绝、网络不可达或代理握手失败
+     * 被对端的 Tunnel 连带关闭时不算
+     */
+    protected void onConnectFailed() {
+    }
+
+    /**
+     * 三次握手所花的时间，可以粗略当作到对端的 RTT
+     *
+     * @return 毫秒数，未连接时为 -1
+     */
+    public long getConnectRtt() {
+        return connectRtt;
+    }
+
     protected void handshake() {
         establish();
     }
 
     protected void establish() {
         onEstablished();
-        writeRemaining();
+        flush();
     }
 
     protected abstract void onEstablished();
 
+    /**
+     * @return 从开始连接到现在的毫秒数
+     */
+    public long getConnectElapsed() {
+        return System.currentTimeMillis() - connectStartedAt;
+    }
+
     /**
      * Tunnel 是否完成了握手、可以开始写入数据
      *
@@ -102,20 +124,44 @@ public abstract class RemoteTunnel extends Tunnel implements Connectible {
         return channel.isConnected();
     }
 
+    @Override
+    public void close() {
+        if (connectStartedAt > 0 && !isClosed() && !isEstablished()) {
+            onConnectFailed();
+        }
+
+        super.close();
+    }
+
+    /**
+     * {@inheritDoc}
+     * 握手完成之前读到 EOF 说明连接失败了，直接关闭
+     */
+    @Override
+    protected boolean isHalfClosable() {
+        return isEstablished();
+    }
+
+    /**
+     * 是否可以把发送队列写出去，默认要等握手完成
+     *
+     * @return 可以写出
+     */
+    protected boolean isSendable() {
+        return isEstablished();
+    }
+
     /**
      * {@inheritDoc}
-     * {@link me.xingrz.prox.tcp.tunnel.RemoteTunnel} 的 {@link #write(java.nio.ByteBuffer)}
-     * 方法允许在 {@link #connect(java.net.InetSocketAddress)} 前调用，数据会先缓存在内部
+     * 在可以写出之前，数据会先积压在发送队列里，等 {@link #establish()} 时以一次聚集写全部写出
      */
     @Override
-    public boolean write(ByteBuffer buffer) {
-        if (!isEstablished()) {
-            logger.v("Buffered %d bytes of write since tunnel is not established", buffer.remaining());
-            keepRemaining(buffer);
+    protected boolean flush() {
+        if (!isSendable()) {
             return false;
         }
 
-        return super.write(buffer);
+        return super.flush();
     }
 
 }
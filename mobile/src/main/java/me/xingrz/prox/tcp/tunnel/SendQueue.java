@@ -0,0 +1,324 @@
+/*
+ * Copyright (C) 2015 XiNGRZ <chenxingyu92@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package me.xingrz.prox.tcp.tunnel;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+import me.xingrz.prox.transport.BufferPool;
+
+/**
+ * 一个方向上的发送队列
+ * <p/>
+ * 由写出方 Tunnel 持有，是一串从 {@link BufferPool} 借来的分段，总容量有上限。
+ * 读入方 Tunnel 直接从自己的通道读进队尾分段的空闲区域，写出方再用一次聚集写把所有分段写到自己的通道，
+ * 中间不再有拷贝，多次写不完的数据也只会排在后面，不会互相覆盖。
+ * <p/>
+ * 每次读入只读进一个分段，所以交给钩子的数据总是连续的。分段写空后马上归还给池子。
+ * <p/>
+ * 队列空着时借的第一个分段按上一次读入的大小挑尺寸，零星的小数据只占一个小分段；
+ * 上一次读满了、或者还没读过（嗅探要在第一个分段里攒数据）时用最大的分段。
+ * 队列满了、或者池子借完了时 {@link #prepareRead()} 返回 {@code null}，由读入方暂停读取。
+ * <p/>
+ * 每个分段平时处于待写出状态，即 position 到 limit 是尚未写出的数据。
+ * 队头还可以插入一段不属于池子的前导数据，比如代理握手，它会和后面的分段在同一次聚集写里写出。
+ * 只在会话所在的事件循环中使用，不是线程安全的。
+ *
+ * @author XiNGRZ
+ */
+final class SendQueue {
+
+    /**
+     * 最大的分段，第一个之后的分段总是用它
+     */
+    static final int SEGMENT_SIZE = BufferPool.MAX_SIZE;
+    static final int MAX_SEGMENTS = 2;
+
+    /**
+     * 还没读过时第一个分段的尺寸，和嗅探的上限一致。
+     * 排队中的会话会一直攥着首包，给它们每个都借最大的分段，一批排队就能把池子掏空
+     */
+    static final int INITIAL_SEGMENT_SIZE = IncomingTunnel.MAX_SNIFF_SIZE;
+
+    /**
+     * 总容量的上限，第一个分段小时实际更小
+     */
+    static final int CAPACITY = SEGMENT_SIZE * MAX_SEGMENTS;
+
+    /**
+     * 队尾分段剩余空间不足这么多时，新开一个分段来读，避免一次只读进一点点
+     */
+    private static final int MIN_READ_SPACE = 2048;
+
+    private final BufferPool bufferPool;
+
+    /**
+     * 分段按顺序排列，下标 0 是队头，正好可以直接交给聚集写
+     */
+    private final ByteBuffer[] segments = new ByteBuffer[MAX_SEGMENTS];
+    private int count;
+
+    /**
+     * 排在所有分段之前的前导数据，写完就丢掉，不还给池子
+     */
+    private ByteBuffer preface;
+
+    /**
+     * 有前导数据时聚集写用的数组，避免每次分配
+     */
+    private final ByteBuffer[] gathering = new ByteBuffer[MAX_SEGMENTS + 1];
+
+    private int size;
+
+    /**
+     * 正在读入的分段，以及它读入前的 position 和 limit
+     */
+    private ByteBuffer reading;
+    private int readingPosition;
+    private int readingLimit;
+
+    /**
+     * 上一次读入的字节数，以及是否读满了可用空间，还没读过时为 -1
+     */
+    private int lastReadLength = -1;
+    private boolean lastReadFilled;
+
+    SendQueue(BufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return 积压的字节数
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * 准备读入，返回的缓冲区 position 到 limit 是一段连续的空闲区域
+     *
+     * @return 可读入的缓冲区，满了或借不到分段时返回 {@code null}
+     */
+    ByteBuffer prepareRead() {
+        ByteBuffer segment = count > 0 ? segments[count - 1] : null;
+
+        if (segment == null || segment.capacity() - segment.limit() < MIN_READ_SPACE) {
+            if (count == MAX_SEGMENTS) {
+                if (segment == null || segment.limit() == segment.capacity()) {
+                    return null;
+                }
+            } else {
+                ByteBuffer acquired = bufferPool.acquire(count == 0 ? firstSegmentSize() : SEGMENT_SIZE);
+                if (acquired != null) {
+                    segment = acquired;
+                    segment.limit(0);
+                    segments[count++] = segment;
+                } else if (segment == null || segment.limit() == segment.capacity()) {
+                    // 池子借完了，队尾也没有空间
+                    return null;
+                }
+            }
+        }
+
+        reading = segment;
+        readingPosition = segment.position();
+        readingLimit = segment.limit();
+
+        segment.position(readingLimit);
+        segment.limit(segment.capacity());
+        return segment;
+    }
+
+    /**
+     * @return 队列空着时第一个分段的尺寸，池子会向上取到一个尺寸级别
+     */
+    private int firstSegmentSize() {
+        if (lastReadLength < 0) {
+            return INITIAL_SEGMENT_SIZE;
+        }
+
+        if (lastReadFilled) {
+            return SEGMENT_SIZE;
+        }
+
+        return Math.min(Math.max(lastReadLength * 2, MIN_READ_SPACE), SEGMENT_SIZE);
+    }
+
+    /**
+     * 读入完成后，取出刚读入的那段数据
+     *
+     * @return position 到 limit 为刚读入的数据
+     */
+    ByteBuffer received() {
+        reading.limit(reading.position());
+        reading.position(readingLimit);
+        return reading;
+    }
+
+    /**
+     * 丢弃刚读入数据的开头一段，剩下的前移到原来的起点，之后应按 {@code length - count} 调用 {@link #finishRead(int, boolean)}
+     * 只在握手这类一次性的场合使用，移动的数据量很小
+     *
+     * @param count  丢弃的字节数
+     * @param length 刚读入的字节数
+     * @return 和 {@link #received()} 一样，position 到 limit 为剩下的数据
+     */
+    ByteBuffer discardReceived(int count, int length) {
+        int remaining = length - count;
+        for (int i = 0; i < remaining; i++) {
+            reading.put(readingLimit + i, reading.get(readingLimit + count + i));
+        }
+
+        reading.position(readingLimit);
+        reading.limit(readingLimit + remaining);
+        return reading;
+    }
+
+    /**
+     * 在队头插入前导数据，它会先于所有已排队的数据写出
+     *
+     * @param buffer position 到 limit 为要写出的数据，之后由队列持有
+     */
+    void prepend(ByteBuffer buffer) {
+        if (preface != null) {
+            throw new IllegalStateException("Preface already queued");
+        }
+
+        preface = buffer;
+        size += buffer.remaining();
+    }
+
+    /**
+     * 结束读入，{@code commit} 为 {@code true} 时把刚读入的数据排入队列，否则丢弃
+     *
+     * @param length 刚读入的字节数
+     * @param commit 是否排入队列
+     */
+    void finishRead(int length, boolean commit) {
+        if (length > 0) {
+            lastReadFilled = length == reading.capacity() - readingLimit;
+            lastReadLength = length;
+        }
+
+        if (commit) {
+            readingLimit += length;
+            size += length;
+        }
+
+        reading.limit(readingLimit);
+        reading.position(readingPosition);
+        reading = null;
+
+        trimTail();
+    }
+
+    /**
+     * 用一次聚集写尽可能把积压数据写到通道，写空的分段马上归还
+     *
+     * @param channel 通道
+     * @return 写出的字节数
+     * @throws IOException 写出失败
+     */
+    long drainTo(SocketChannel channel) throws IOException {
+        if (size == 0) {
+            return 0;
+        }
+
+        long written;
+
+        if (preface == null) {
+            written = channel.write(segments, 0, count);
+        } else {
+            gathering[0] = preface;
+            System.arraycopy(segments, 0, gathering, 1, count);
+
+            written = channel.write(gathering, 0, count + 1);
+
+            for (int i = 0; i <= count; i++) {
+                gathering[i] = null;
+            }
+
+            if (preface.hasRemaining()) {
+                size -= written;
+                return written;
+            }
+
+            preface = null;
+        }
+
+        size -= written;
+
+        int drained = 0;
+        while (drained < count && !segments[drained].hasRemaining()) {
+            bufferPool.release(segments[drained]);
+            drained++;
+        }
+
+        if (drained > 0) {
+            System.arraycopy(segments, drained, segments, 0, count - drained);
+            for (int i = count - drained; i < count; i++) {
+                segments[i] = null;
+            }
+
+            count -= drained;
+        }
+
+        return written;
+    }
+
+    /**
+     * 没有积压数据时把所有分段还给池子
+     */
+    void trim() {
+        if (size == 0) {
+            clear();
+        }
+    }
+
+    /**
+     * 丢弃积压数据并归还所有分段
+     */
+    void clear() {
+        for (int i = 0; i < count; i++) {
+            bufferPool.release(segments[i]);
+            segments[i] = null;
+        }
+
+        count = 0;
+        size = 0;
+        preface = null;
+        reading = null;
+    }
+
+    /**
+     * 读入后队尾分段仍是空的，就把它还回去
+     */
+    private void trimTail() {
+        if (count > 0 && segments[count - 1].limit() == 0) {
+            bufferPool.release(segments[--count]);
+            segments[count] = null;
+        }
+    }
+
+}
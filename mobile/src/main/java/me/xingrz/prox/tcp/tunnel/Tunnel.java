@@ -32,28 +32,90 @@ import java.nio.channels.SocketChannel;
 import me.xingrz.prox.logging.FormattingLogger;
 import me.xingrz.prox.selectable.Readable;
 import me.xingrz.prox.selectable.Writable;
+import me.xingrz.prox.transport.BufferPool;
+import me.xingrz.prox.transport.EventLoop;
 
 /**
  * Tunnel 基类
  * 一个 Tunnel 包装了一条 {@link java.nio.channels.SocketChannel}
  * 两个 Tunnel 可以互相 {@link #setBrother(Tunnel)} 对接，内部便会自动维护互相的读写
+ * <p/>
+ * 每个 Tunnel 持有一个发往自己通道的 {@link SendQueue}，{@link #brother} 直接从它的通道读进这个队列，
+ * 再由本 Tunnel 以聚集写写出，两个方向各一个队列，数据在中转过程中不再拷贝。
+ * 队列的分段从 {@link BufferPool} 借用，只在有数据积压时持有，所以空闲的 Tunnel 不占用缓冲区。
+ * 池子借完时同样暂停读取，等有缓冲区归还再回到本 Tunnel 的事件循环里恢复。
+ * <p/>
+ * 每条通道在 selector 上只有一个 key，从注册起一直用到关闭，背压只靠切换它的 interestOps：
+ * 队列积压超过高水位或满了时暂停读入方的 OP_READ，写出方写到低水位以下时再恢复；有积压时关注 OP_WRITE，写完就取消。
+ * <p/>
+ * 支持 TCP 半关闭：一方读到 EOF 后不再读取，等对方队列里的数据写完再对它 shutdownOutput，
+ * 另一个方向照常转发，直到两个方向都结束才关闭两条通道。
  */
 public abstract class Tunnel implements Closeable, Readable, Writable {
 
+    private static final int HIGH_WATERMARK = SendQueue.CAPACITY * 3 / 4;
+    private static final int LOW_WATERMARK = SendQueue.CAPACITY / 4;
+
     protected final FormattingLogger logger;
 
+    protected final EventLoop loop;
     protected final Selector selector;
     protected final SocketChannel channel;
 
     protected Tunnel brother;
 
-    private ByteBuffer receiving = ByteBuffer.allocate(0xFFFF);
-    private ByteBuffer remaining = ByteBuffer.allocate(0xFFFF);
+    /**
+     * 发往本 Tunnel 通道的数据，由 {@link #brother} 读入、本 Tunnel 写出
+     */
+    private final SendQueue outbound = new SendQueue(BufferPool.getInstance());
+
+    /**
+     * 通道在 selector 上唯一的 key，第一次关注事件时注册
+     */
+    private SelectionKey key;
+
+    /**
+     * 是否因为 {@link #brother} 积压过多而暂停了读取
+     */
+    private boolean receivingPaused;
+
+    /**
+     * 是否在等池子归还缓冲区
+     */
+    private boolean awaitingBuffer;
+
+    private final Runnable bufferReleased = new Runnable() {
+        @Override
+        public void run() {
+            awaitingBuffer = false;
+
+            if (!closed) {
+                resumeReceiving();
+            }
+        }
+    };
+
+    /**
+     * 本通道已读到 EOF
+     */
+    private boolean inputShutdown;
+
+    /**
+     * 积压写完后要对本通道 shutdownOutput，以及是否已经做了
+     */
+    private boolean outputShutdownPending;
+    private boolean outputShutdown;
+
+    /**
+     * 从本通道累计读入的字节数
+     */
+    private long bytesReceived;
 
     private volatile boolean closed;
 
-    public Tunnel(Selector selector, SocketChannel channel, String sessionKey) {
-        this.selector = selector;
+    public Tunnel(EventLoop loop, SocketChannel channel, String sessionKey) {
+        this.loop = loop;
+        this.selector = loop.selector();
         this.channel = channel;
         this.logger = getLogger(sessionKey);
     }
@@ -64,6 +126,17 @@ public abstract class Tunnel implements Closeable, Readable, Writable {
         return channel.socket();
     }
 
+    /**
+     * @return 从本通道累计读入的字节数，只在会话所在的事件循环中准确
+     */
+    public long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
     /**
      * @param brother 对接到这条 Tunnel
      */
@@ -79,94 +152,183 @@ public abstract class Tunnel implements Closeable, Readable, Writable {
             if (channel.isBlocking()) {
                 channel.configureBlocking(false);
             }
-
-            channel.register(selector, SelectionKey.OP_READ, this);
         } catch (IOException e) {
             logger.w(e, "Failed to begin receiving, close");
             IOUtils.closeQuietly(this);
+            return;
+        }
+
+        if (inputShutdown) {
+            return;
+        }
+
+        receivingPaused = false;
+        updateInterest(SelectionKey.OP_READ, 0);
+    }
+
+    /**
+     * 调整通道关注的事件，第一次调用时才注册到 selector 上，之后只修改同一个 key 的 interestOps
+     *
+     * @param add    要增加关注的事件
+     * @param remove 要取消关注的事件
+     */
+    protected final void updateInterest(int add, int remove) {
+        if (closed) {
+            return;
+        }
+
+        if (key == null) {
+            if (add == 0) {
+                return;
+            }
+
+            try {
+                key = channel.register(selector, add, this);
+            } catch (ClosedChannelException e) {
+                logger.w(e, "Failed to register since channel is closed");
+                IOUtils.closeQuietly(this);
+            }
+
+            return;
+        }
+
+        if (!key.isValid()) {
+            return;
+        }
+
+        int ops = key.interestOps();
+        int updated = (ops | add) & ~remove;
+        if (updated != ops) {
+            key.interestOps(updated);
+        }
+    }
+
+    private void pauseReceiving() {
+        if (!receivingPaused) {
+            receivingPaused = true;
+            updateInterest(0, SelectionKey.OP_READ);
+            logger.v("Brother backed up, paused receiving");
+        }
+    }
+
+    private void resumeReceiving() {
+        if (receivingPaused && !inputShutdown) {
+            receivingPaused = false;
+            updateInterest(SelectionKey.OP_READ, 0);
+            logger.v("Brother drained, resumed receiving");
         }
     }
 
     /**
      * 当 Selector 选择到 OP_READ 的时候会调用此方法
+     * 直接读进 {@link #brother} 的发送队列，再让它写出
      *
      * @param key Selection Key
      */
     @Override
     public final void onReadable(SelectionKey key) {
-        if (closed || receiving == null) {
+        if (closed || brother == null) {
             return;
         }
 
-        receiving.clear();
+        SendQueue queue = brother.outbound;
+
+        ByteBuffer receiving = queue.prepareRead();
+        if (receiving == null) {
+            pauseReceiving();
+
+            // 队列是空的却借不到缓冲区，说明池子借完了，brother 写空也不会再叫醒自己
+            if (queue.isEmpty() && !awaitingBuffer) {
+                awaitingBuffer = true;
+                BufferPool.getInstance().awaitRelease(loop, bufferReleased);
+            }
+
+            return;
+        }
 
         int read;
 
         try {
             read = channel.read(receiving);
         } catch (IOException e) {
+            queue.finishRead(0, false);
             logger.w(e, "Failed to read from channel, terminated");
             IOUtils.closeQuietly(this);
             return;
         }
 
         if (read == -1) {
-            IOUtils.closeQuietly(this);
+            queue.finishRead(0, false);
+            onInputShutdown();
             return;
         }
 
-        receiving.flip();
-
         // 空，忽略
-        if (!receiving.hasRemaining()) {
+        if (read == 0) {
+            queue.finishRead(0, false);
             return;
         }
 
-        // 子类处理了数据
-        if (afterReceived(receiving)) {
+        bytesReceived += read;
+
+        ByteBuffer received = queue.received();
+        int start = received.position();
+
+        boolean handled = afterReceived(received);
+
+        // 钩子里关闭了隧道，队列连同正在读入的分段都已还给池子，不能再碰
+        if (closed) {
             return;
         }
 
-        // 没东西需要处理
-        if (!receiving.hasRemaining()) {
+        // 子类处理了数据，这段数据不排入队列，下次读入时直接覆盖
+        if (handled) {
+            queue.finishRead(read, false);
             return;
         }
 
-        brother.beforeSending(receiving);
+        // 子类只消化了开头一段，比如代理的响应头，剩下的照常发给 brother
+        int consumed = received.position() - start;
+        if (consumed > 0) {
+            received = queue.discardReceived(consumed, read);
+            read -= consumed;
+        }
 
-        if (!brother.write(receiving)) {
-            logger.v("Brother not ready for receiving, canceled");
-            key.cancel();
+        brother.beforeSending(received);
+        queue.finishRead(read, true);
+
+        brother.flush();
+
+        if (brother != null && queue.size() >= HIGH_WATERMARK) {
+            pauseReceiving();
         }
     }
 
     /**
      * Tunnel 从自己的 {@link #channel} 接收到了数据
      *
-     * @param buffer 接收到的数据
-     * @return {@code true} 表示已自己消化了数据，{@code false} 则会将数据发给 {@link #brother}
+     * @param buffer 接收到的数据，是一段连续的数据，但 position 不一定从 0 开始
+     * @return {@code true} 表示已自己消化了数据，{@code false} 则会将 position 到 limit 的数据发给 {@link #brother}，
+     * 此时可以推进 position 来消化开头的一段，但不应改动 limit
      */
     protected abstract boolean afterReceived(ByteBuffer buffer);
 
     /**
      * 另一条 Tunnel 即将向自己发送数据
      *
-     * @param buffer 即将发送的数据
+     * @param buffer 即将发送的数据，可以原地改写内容，但不应改动 position 和 limit
      */
     protected abstract void beforeSending(ByteBuffer buffer);
 
     /**
-     * 向该 Tunnel 的 {@link #channel} 发送数据
+     * 不经过发送队列，直接向该 Tunnel 的 {@link #channel} 发送数据
+     * 用于握手这类必须抢在积压数据之前发出的少量数据
      *
      * @param buffer 即将发送的数据
      * @return 是否完整发送了所有数据
      */
-    public boolean write(ByteBuffer buffer) {
-        return writeInternal(buffer);
-    }
-
     protected final boolean writeInternal(ByteBuffer buffer) {
-        if (closed || remaining == null) {
+        if (closed) {
             return false;
         }
 
@@ -181,32 +343,105 @@ public abstract class Tunnel implements Closeable, Readable, Writable {
             return false;
         }
 
-        if (buffer.hasRemaining()) {
-            keepRemaining(buffer);
+        return !buffer.hasRemaining();
+    }
+
+    /**
+     * 在发送队列的最前面插入一段数据，它会和已经积压的数据在同一次聚集写里写出
+     *
+     * @param buffer 要写出的数据
+     */
+    protected final void prepend(ByteBuffer buffer) {
+        outbound.prepend(buffer);
+    }
+
+    /**
+     * 把发送队列里积压的数据以一次聚集写写出到 {@link #channel}
+     * 写不完时关注 OP_WRITE 等待，写完后取消；积压回落到低水位以下时恢复 {@link #brother} 的读取
+     *
+     * @return 是否已全部写完
+     */
+    protected boolean flush() {
+        if (closed) {
             return false;
-        } else {
-            return true;
         }
-    }
 
-    protected void keepRemaining(ByteBuffer buffer) {
-        remaining.clear();
-        remaining.put(buffer);
-        remaining.flip();
+        if (!outbound.isEmpty()) {
+            try {
+                outbound.drainTo(channel);
+            } catch (IOException e) {
+                logger.w(e, "Failed writing remaining data, closed");
+                IOUtils.closeQuietly(this);
+                return false;
+            }
+        }
+
+        boolean drained = outbound.isEmpty();
+
+        if (drained) {
+            outbound.trim();
+            updateInterest(0, SelectionKey.OP_WRITE);
+
+            if (outputShutdownPending && !outputShutdown && isHalfClosable()) {
+                shutdownOutput();
+            }
+        } else if (channel.isConnected()) {
+            // 通道连接完毕后即可写入，所以连接前不需要关注
+            updateInterest(SelectionKey.OP_WRITE, 0);
+        }
 
-        // 通道连接完毕后即可写入，所以不需要注册
-        if (!channel.isConnected()) {
+        if (brother != null && outbound.size() <= LOW_WATERMARK) {
+            brother.resumeReceiving();
+        }
+
+        return drained;
+    }
+
+    /**
+     * 本通道读到了 EOF，停止读取，并让 {@link #brother} 在积压写完后半关闭
+     */
+    private void onInputShutdown() {
+        if (brother == null || !isHalfClosable()) {
+            IOUtils.closeQuietly(this);
             return;
         }
 
+        inputShutdown = true;
+        updateInterest(0, SelectionKey.OP_READ);
+
+        logger.v("Input shutdown, half-closing brother");
+
+        brother.outputShutdownPending = true;
+        brother.flush();
+    }
+
+    private void shutdownOutput() {
         try {
-            channel.register(selector, SelectionKey.OP_WRITE, this);
-        } catch (ClosedChannelException e) {
-            logger.w(e, "Failed to register OP_WRITE since channel is closed");
+            channel.socket().shutdownOutput();
+        } catch (IOException e) {
+            logger.w(e, "Failed to shutdown output, closed");
+            IOUtils.closeQuietly(this);
+            return;
+        }
+
+        outputShutdown = true;
+
+        // 两个方向都结束了
+        if (brother != null && brother.inputShutdown && inputShutdown && brother.outputShutdown) {
+            logger.v("Both directions finished, closed");
             IOUtils.closeQuietly(this);
         }
     }
 
+    /**
+     * 读到 EOF 时是否可以只半关闭，否则直接关闭两条通道
+     *
+     * @return 默认可以
+     */
+    protected boolean isHalfClosable() {
+        return true;
+    }
+
     /**
      * 当 Selector 选择到 OP_WRITE 的时候会调用此方法
      *
@@ -218,25 +453,7 @@ public abstract class Tunnel implements Closeable, Readable, Writable {
             return;
         }
 
-        beforeSending(remaining);
-        writeRemaining();
-        key.cancel();
-    }
-
-    protected void writeRemaining() {
-        try {
-            while (remaining.hasRemaining()) {
-                if (channel.write(remaining) == 0) {
-                    break;
-                }
-            }
-        } catch (IOException e) {
-            logger.w(e, "Failed writing remaining data, closed");
-            IOUtils.closeQuietly(this);
-            return;
-        }
-
-        brother.beginReceiving();
+        flush();
     }
 
     /**
@@ -257,8 +474,7 @@ public abstract class Tunnel implements Closeable, Readable, Writable {
                 brother.closeInternal(false);
             }
 
-            remaining = null;
-            receiving = null;
+            outbound.clear();
 
             brother = null;
 
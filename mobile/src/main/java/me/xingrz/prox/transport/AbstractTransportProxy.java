@@ -25,11 +25,17 @@ import java.io.IOException;
 import java.net.InetAddress;
 import java.nio.channels.SelectableChannel;
 import java.nio.channels.Selector;
+import java.util.concurrent.ArrayBlockingQueue;
 
+import me.xingrz.prox.internet.IpUtils;
 import me.xingrz.prox.logging.FormattingLogger;
 
 /**
  * 传输层代理服务器抽象
+ * <p/>
+ * 会话表只属于 VPN 线程：{@link #pickSession(int, int, int)}、{@link #getSession(int)}、
+ * {@link #finishSession(int)} 只能在 VPN 线程调用。事件循环只能用 {@link #findSession(int)} 只读查找，
+ * 要移除会话时用 {@link #releaseSession(Session)} 投递到一个有界队列，由 VPN 线程在下次新建会话前处理。
  *
  * @param <C> 服务器通道，比如 {@link java.nio.channels.ServerSocketChannel} 或 {@link java.nio.channels.DatagramChannel}
  * @param <S> 会话
@@ -45,27 +51,61 @@ public abstract class AbstractTransportProxy
 
         protected final FormattingLogger logger;
 
+        protected final EventLoop loop;
         protected final Selector selector;
 
         private final int sourcePort;
 
+        private final int remoteIp;
         private final InetAddress remoteAddress;
         private final int remotePort;
 
-        private boolean finished = false;
+        private volatile boolean finished = false;
 
-        long lastActive = System.currentTimeMillis();
+        volatile long lastActive = System.currentTimeMillis();
 
-        public Session(Selector selector, int sourcePort, InetAddress remoteAddress, int remotePort) {
-            this.selector = selector;
+        /**
+         * 空闲过期定时器，只在 {@link #loop} 中操作
+         */
+        TimerWheel.Timeout idleTimeout;
+
+        /**
+         * 是否已从会话表中移除，移除后定时器到期时就不再续期
+         */
+        volatile boolean removed;
+
+        /**
+         * 是否已被其他线程要求移除，VPN 线程查到这样的会话时当作不存在并顺手移除
+         */
+        volatile boolean released;
+
+        /**
+         * 在 {@link NatSessionManager} 中的键、映射端口，以及 LRU 链表指针
+         */
+        long natKey;
+        int mappedPort;
+        Session lruPrev;
+        Session lruNext;
+
+        public Session(EventLoop loop, int sourcePort, int remoteIp, int remotePort) {
+            this.loop = loop;
+            this.selector = loop.selector();
             this.sourcePort = sourcePort;
-            this.remoteAddress = remoteAddress;
+            this.remoteIp = remoteIp;
+            this.remoteAddress = IpUtils.toInetAddress(remoteIp);
             this.remotePort = remotePort;
             this.logger = getLogger();
         }
 
         protected abstract FormattingLogger getLogger();
 
+        /**
+         * @return 会话所在的事件循环，会话的通道只能在这个循环里读写
+         */
+        public EventLoop loop() {
+            return loop;
+        }
+
         /**
          * @return 来源端口
          */
@@ -73,6 +113,20 @@ public abstract class AbstractTransportProxy
             return sourcePort;
         }
 
+        /**
+         * @return 映射端口，改写后的数据包以它作为来源端口发往本地代理
+         */
+        public int getMappedPort() {
+            return mappedPort;
+        }
+
+        /**
+         * @return 远端地址
+         */
+        public int getRemoteIp() {
+            return remoteIp;
+        }
+
         /**
          * @return 远端地址
          */
@@ -103,6 +157,7 @@ public abstract class AbstractTransportProxy
 
         /**
          * 标记会话活动，不然过期未活动会被回收
+         * 只是记录时间，由定时器到期时再检查，所以可以在任意线程频繁调用
          */
         public void active() {
             lastActive = System.currentTimeMillis();
@@ -112,10 +167,18 @@ public abstract class AbstractTransportProxy
 
     protected final FormattingLogger logger = getLogger();
 
+    /**
+     * 待 VPN 线程移除的会话队列容量，满了以后退化为由 VPN 线程查到时再移除
+     */
+    private static final int RELEASE_QUEUE_CAPACITY = 256;
+
     private final long sessionTimeout;
 
     private final NatSessionManager<S> sessions;
 
+    private final ArrayBlockingQueue<S> releaseQueue = new ArrayBlockingQueue<>(RELEASE_QUEUE_CAPACITY);
+
+    protected TransportProxyRunner runner;
     protected Selector selector;
     protected C serverChannel;
 
@@ -125,6 +188,8 @@ public abstract class AbstractTransportProxy
         this.sessions = new NatSessionManager<S>(maxSessionCount) {
             @Override
             protected void onRemoved(S session) {
+                session.removed = true;
+                cancelIdleTimeout(session);
                 IOUtils.closeQuietly(session);
                 if (session.isFinished()) {
                     logger.v("Removed finished session %08x", session.hashCode());
@@ -134,9 +199,10 @@ public abstract class AbstractTransportProxy
             }
 
             @Override
-            protected boolean shouldRecycle(S session) {
-                return shouldRecycleSession(session);
+            protected boolean isEvictable(S session) {
+                return isSessionEvictable(session);
             }
+
         };
     }
 
@@ -146,8 +212,15 @@ public abstract class AbstractTransportProxy
 
     public abstract int port();
 
-    public void start(Selector selector) throws IOException {
-        this.selector = selector;
+    /**
+     * 在 {@code runner} 的 boss 事件循环上启动监听通道
+     *
+     * @param runner 代理服务器
+     * @throws IOException 无法创建监听通道
+     */
+    public void start(TransportProxyRunner runner) throws IOException {
+        this.runner = runner;
+        this.selector = runner.boss().selector();
 
         serverChannel = createChannel(selector);
         logger.d("Proxy running on %d", port());
@@ -157,8 +230,12 @@ public abstract class AbstractTransportProxy
         return serverChannel.isOpen();
     }
 
+    /**
+     * 在所有事件循环停止后由 VPN 线程调用
+     */
     @Override
     public void close() throws IOException {
+        releaseQueue.clear();
         sessions.clear();
         serverChannel.close();
     }
@@ -166,55 +243,230 @@ public abstract class AbstractTransportProxy
     /**
      * 创建新的会话，子类必须重载此方法
      *
-     * @param sourcePort    来源端口，作为标识
-     * @param remoteAddress 目标地址
-     * @param remotePort    目标端口
+     * @param sourcePort 来源端口，作为标识
+     * @param remoteIp   目标地址
+     * @param remotePort 目标端口
      * @return 新的会话实例
      * @throws IOException 可能会因为无法绑定端口而抛出异常
      */
-    protected abstract S createSession(int sourcePort, InetAddress remoteAddress, int remotePort)
+    protected abstract S createSession(int sourcePort, int remoteIp, int remotePort)
             throws IOException;
 
     /**
-     * 抽取一个会话
-     * 默认实现为创建新会话并将它放入会话队列中，子类可以根据需要重载它，比如复用已有会话
+     * 抽取一个会话，只能在 VPN 线程调用
+     * 同一个五元组上已有未完成的会话就复用它，否则创建新会话并放入会话表，分配映射端口
      *
-     * @param sourcePort    来源端口，作为标识
-     * @param remoteAddress 目标地址
-     * @param remotePort    目标端口
-     * @return 新的会话实例
+     * @param sourcePort 来源端口
+     * @param remoteIp   目标地址
+     * @param remotePort 目标端口
+     * @return 会话实例
      * @throws IOException 如果是新创建会话，可能会抛出异常
      */
-    public S pickSession(int sourcePort, InetAddress remoteAddress, int remotePort) throws IOException {
-        S session = createSession(sourcePort, remoteAddress, remotePort);
-        sessions.put(sourcePort, session);
+    public S pickSession(int sourcePort, int remoteIp, int remotePort) throws IOException {
+        drainReleased();
+
+        long key = NatSessionManager.key(sourcePort, remoteIp, remotePort);
+
+        S session = sessions.get(key);
+        if (session != null && !session.isFinished() && !session.released) {
+            return session;
+        }
+
+        session = createSession(sourcePort, remoteIp, remotePort);
+        sessions.put(key, session);
+        armIdleTimeout(session);
         return session;
     }
 
     /**
-     * 获取一个已有的会话
+     * 在会话所在的事件循环上设置空闲过期定时器
+     */
+    private void armIdleTimeout(final S session) {
+        session.idleTimeout = new TimerWheel.Timeout(new Runnable() {
+            @Override
+            public void run() {
+                onIdleTimeout(session);
+            }
+        });
+
+        session.loop().schedule(session.idleTimeout, getSessionTimeout(session));
+    }
+
+    /**
+     * 会话移除后取消它的空闲定时器，免得时间轮一直引用着它，投递到会话所在的事件循环上执行
+     */
+    private void cancelIdleTimeout(S session) {
+        final TimerWheel.Timeout timeout = session.idleTimeout;
+        if (timeout == null) {
+            return;
+        }
+
+        if (session.loop().inEventLoop()) {
+            timeout.cancel();
+        } else {
+            session.loop().execute(new Runnable() {
+                @Override
+                public void run() {
+                    timeout.cancel();
+                }
+            });
+        }
+    }
+
+    /**
+     * 按会话当前状态重新设置空闲过期时间，比如会话完成后缩短，可以在任意线程调用
      *
-     * @param sourcePort 来源端口，作为标识
-     * @return 会话实例，或 {@code null} 表示不存在
+     * @param session 会话
+     */
+    protected void rescheduleIdleTimeout(S session) {
+        if (session.idleTimeout != null && !session.removed) {
+            session.loop().schedule(session.idleTimeout, getSessionTimeout(session));
+        }
+    }
+
+    /**
+     * 空闲定时器到期，在会话所在的事件循环中调用
+     * 期间有过活动的话按最后活动时间续期，否则让会话过期
+     */
+    private void onIdleTimeout(S session) {
+        if (session.removed) {
+            return;
+        }
+
+        long timeout = getSessionTimeout(session);
+        long idle = System.currentTimeMillis() - session.lastActive;
+
+        if (idle < timeout) {
+            session.loop().schedule(session.idleTimeout, timeout - idle);
+            return;
+        }
+
+        logger.v("Session %08x idle for %d ms, expired", session.hashCode(), idle);
+        expireSession(session);
+    }
+
+    /**
+     * 让会话过期，交给 VPN 线程从会话表中移除并关闭
+     *
+     * @param session 会话
      */
-    public S getSession(int sourcePort) {
-        return sessions.get(sourcePort);
+    protected void expireSession(S session) {
+        releaseSession(session);
     }
 
     /**
-     * 完成并删除会话
+     * 要求移除会话，可以在任意线程调用
+     * 会话被标记并立即关闭，VPN 线程就不会再使用它；表项由 VPN 线程在下次新建会话前清理，
+     * 队列满时则留到 VPN 线程查到它或 LRU 淘汰它时再清理
+     *
+     * @param session 会话
+     */
+    public void releaseSession(S session) {
+        if (session.removed || session.released) {
+            return;
+        }
+
+        session.released = true;
+        IOUtils.closeQuietly(session);
+
+        if (!releaseQueue.offer(session)) {
+            logger.w("Release queue full, session %08x will be reaped lazily", session.hashCode());
+        }
+    }
+
+    /**
+     * 处理其他线程投递过来的移除请求
+     */
+    private void drainReleased() {
+        S session;
+        while ((session = releaseQueue.poll()) != null) {
+            removeIfPresent(session);
+        }
+    }
+
+    private void removeIfPresent(S session) {
+        if (!session.removed && sessions.peek(session.natKey) == session) {
+            sessions.remove(session.natKey);
+        }
+    }
+
+    /**
+     * 以五元组获取一个已有的会话，包括已完成的，只能在 VPN 线程调用
      *
      * @param sourcePort 来源端口
+     * @param remoteIp   目标地址
+     * @param remotePort 目标端口
+     * @return 会话实例，或 {@code null} 表示不存在
+     */
+    public S getSession(int sourcePort, int remoteIp, int remotePort) {
+        S session = sessions.get(NatSessionManager.key(sourcePort, remoteIp, remotePort));
+        if (session != null && session.released) {
+            removeIfPresent(session);
+            return null;
+        }
+
+        return session;
+    }
+
+    /**
+     * 以映射端口获取一个已有的会话，只能在 VPN 线程调用
+     *
+     * @param mappedPort 映射端口
      * @return 会话实例，或 {@code null} 表示不存在
      */
-    public S finishSession(int sourcePort) {
-        S session = sessions.get(sourcePort);
-        sessions.remove(sourcePort);
+    public S getSession(int mappedPort) {
+        S session = sessions.getByMappedPort(mappedPort);
+        if (session != null && session.released) {
+            removeIfPresent(session);
+            return null;
+        }
+
         return session;
     }
 
-    protected boolean shouldRecycleSession(S session) {
-        return System.currentTimeMillis() - session.lastActive >= sessionTimeout;
+    /**
+     * 以映射端口查找会话，不改动会话表，可以在任意线程调用
+     *
+     * @param mappedPort 映射端口
+     * @return 会话实例，或 {@code null} 表示不存在
+     */
+    public S findSession(int mappedPort) {
+        S session = sessions.lookup(mappedPort);
+        if (session != null && session.released) {
+            return null;
+        }
+
+        return session;
+    }
+
+    /**
+     * 以映射端口完成并删除会话，只能在 VPN 线程调用
+     *
+     * @param mappedPort 映射端口
+     * @return 会话实例，或 {@code null} 表示不存在
+     */
+    public S finishSession(int mappedPort) {
+        return sessions.removeByMappedPort(mappedPort);
+    }
+
+    /**
+     * 会话空闲多久后过期，子类可以按会话状态区分
+     *
+     * @param session 会话
+     * @return 毫秒数
+     */
+    protected long getSessionTimeout(S session) {
+        return sessionTimeout;
+    }
+
+    /**
+     * 会话数超出上限时是否优先淘汰这个会话，子类可以按会话状态区分
+     *
+     * @param session 会话
+     * @return 默认只有已完成或已要求移除的会话
+     */
+    protected boolean isSessionEvictable(S session) {
+        return session.isFinished() || session.released;
     }
 
 }
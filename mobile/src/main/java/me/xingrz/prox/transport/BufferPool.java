@@ -0,0 +1,297 @@
+/*
+ * Copyright (C) 2015 XiNGRZ <chenxingyu92@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package me.xingrz.prox.transport;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 按尺寸分级的共享缓冲区池
+ * <p/>
+ * 各个事件循环的隧道只在有数据在途时借用缓冲区，用完马上归还，所以空闲的会话不再占着内存。
+ * 优先使用 direct buffer，读写通道时省去一次 JDK 内部临时缓冲区的拷贝；但和 {@link me.xingrz.prox.tun.PacketBuffer}
+ * 一样，只有带底层数组的 direct buffer 才会使用，因为解析握手时仍需要直接访问数组。
+ * <p/>
+ * 池子分配出去的总字节数有硬上限。到了上限会先腾掉其他尺寸的空闲缓冲区，仍然不够就借不到，
+ * {@link #acquire(int)} 返回 {@code null}，由调用方暂停读取形成背压，
+ * 可以用 {@link #awaitRelease(Executor, Runnable)} 等到有缓冲区归还时再试。
+ * <p/>
+ * 可以在任意线程借还。
+ *
+ * @author XiNGRZ
+ */
+public class BufferPool {
+
+    /**
+     * 各级尺寸，借用时取能装下所需大小的最小一级
+     */
+    private static final int[] SIZE_CLASSES = {2048, 16384, 65536};
+
+    public static final int MAX_SIZE = SIZE_CLASSES[SIZE_CLASSES.length - 1];
+
+    private static final long DEFAULT_CAPACITY_BYTES = 4 * 1024 * 1024;
+
+    private static final BufferPool instance = new BufferPool(DEFAULT_CAPACITY_BYTES);
+
+    public static BufferPool getInstance() {
+        return instance;
+    }
+
+    private final long capacityBytes;
+
+    private final boolean directUsable;
+
+    private final ConcurrentLinkedQueue<ByteBuffer>[] idle = newQueues(SIZE_CLASSES.length);
+    private final AtomicInteger[] idleCounts = new AtomicInteger[SIZE_CLASSES.length];
+
+    private final AtomicLong allocatedBytes = new AtomicLong();
+    private final AtomicLong idleBytes = new AtomicLong();
+
+    private final AtomicLong acquireCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong overflowCount = new AtomicLong();
+
+    /**
+     * 借不到缓冲区而在等待归还的任务
+     */
+    private final ConcurrentLinkedQueue<Runnable> waiters = new ConcurrentLinkedQueue<>();
+
+    public BufferPool(long capacityBytes) {
+        this.capacityBytes = capacityBytes;
+
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            idle[i] = new ConcurrentLinkedQueue<>();
+            idleCounts[i] = new AtomicInteger();
+        }
+
+        ByteBuffer probe = ByteBuffer.allocateDirect(1);
+        directUsable = probe.hasArray();
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static ConcurrentLinkedQueue<ByteBuffer>[] newQueues(int length) {
+        return new ConcurrentLinkedQueue[length];
+    }
+
+    private static int sizeClassOf(int size) {
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            if (size <= SIZE_CLASSES[i]) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * 借用一个至少能装下 {@code size} 字节的缓冲区，返回时已 clear
+     *
+     * @param size 所需大小
+     * @return 缓冲区，用完后必须 {@link #release(ByteBuffer)}；池子已到上限时返回 {@code null}
+     */
+    public ByteBuffer acquire(int size) {
+        acquireCount.incrementAndGet();
+
+        int sizeClass = sizeClassOf(size);
+        if (sizeClass == -1) {
+            // 超出最大一级的不入池
+            missCount.incrementAndGet();
+            return ByteBuffer.allocate(size);
+        }
+
+        ByteBuffer buffer = idle[sizeClass].poll();
+        if (buffer != null) {
+            idleCounts[sizeClass].decrementAndGet();
+            idleBytes.addAndGet(-buffer.capacity());
+            buffer.clear();
+            return buffer;
+        }
+
+        missCount.incrementAndGet();
+
+        int capacity = SIZE_CLASSES[sizeClass];
+        if (!reserve(capacity, sizeClass)) {
+            overflowCount.incrementAndGet();
+            return null;
+        }
+
+        return directUsable ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    /**
+     * 在上限内记下一块新分配的容量，不够时腾掉其他尺寸的空闲缓冲区
+     *
+     * @param capacity  新分配的容量
+     * @param sizeClass 新分配的尺寸级别，这一级的空闲缓冲区刚才已经没有了
+     * @return 是否记下了
+     */
+    private boolean reserve(int capacity, int sizeClass) {
+        while (true) {
+            long allocated = allocatedBytes.get();
+            if (allocated + capacity <= capacityBytes) {
+                if (allocatedBytes.compareAndSet(allocated, allocated + capacity)) {
+                    return true;
+                }
+
+                continue;
+            }
+
+            if (!evictIdle(sizeClass)) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * 丢掉一个其他尺寸的空闲缓冲区，把容量让出来
+     *
+     * @param except 不腾的尺寸级别
+     * @return 是否腾出了
+     */
+    private boolean evictIdle(int except) {
+        for (int i = SIZE_CLASSES.length - 1; i >= 0; i--) {
+            if (i == except) {
+                continue;
+            }
+
+            ByteBuffer buffer = idle[i].poll();
+            if (buffer != null) {
+                idleCounts[i].decrementAndGet();
+                idleBytes.addAndGet(-buffer.capacity());
+                allocatedBytes.addAndGet(-buffer.capacity());
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * 借不到缓冲区时登记一个任务，下次有缓冲区归还时投递到指定的线程执行，只执行一次
+     *
+     * @param executor 执行任务的线程，一般是调用方所在的事件循环
+     * @param task     任务
+     */
+    public void awaitRelease(final Executor executor, final Runnable task) {
+        waiters.offer(new Runnable() {
+            @Override
+            public void run() {
+                executor.execute(task);
+            }
+        });
+
+        // 登记之前可能刚好有归还，那次没有叫醒它
+        if (idleBytes.get() > 0 || allocatedBytes.get() + SIZE_CLASSES[0] <= capacityBytes) {
+            wakeWaiters();
+        }
+    }
+
+    private void wakeWaiters() {
+        Runnable waiter;
+        while ((waiter = waiters.poll()) != null) {
+            waiter.run();
+        }
+    }
+
+    /**
+     * 归还缓冲区，归还后不能再使用它
+     *
+     * @param buffer 从 {@link #acquire(int)} 借来的缓冲区，{@code null} 会被忽略
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null) {
+            return;
+        }
+
+        int sizeClass = sizeClassOf(buffer.capacity());
+        if (sizeClass == -1 || buffer.capacity() != SIZE_CLASSES[sizeClass]) {
+            return;
+        }
+
+        idleBytes.addAndGet(buffer.capacity());
+        idleCounts[sizeClass].incrementAndGet();
+        idle[sizeClass].offer(buffer);
+
+        if (!waiters.isEmpty()) {
+            wakeWaiters();
+        }
+    }
+
+    /**
+     * @return 池子持有的总字节数，包括借出的和空闲的
+     */
+    public long getAllocatedBytes() {
+        return allocatedBytes.get();
+    }
+
+    /**
+     * @return 借出中的字节数
+     */
+    public long getInUseBytes() {
+        return allocatedBytes.get() - idleBytes.get();
+    }
+
+    /**
+     * @return 空闲的字节数
+     */
+    public long getIdleBytes() {
+        return idleBytes.get();
+    }
+
+    /**
+     * @return 累计借用次数
+     */
+    public long getAcquireCount() {
+        return acquireCount.get();
+    }
+
+    /**
+     * @return 累计未命中次数，即需要新分配的次数
+     */
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * @return 累计因为到了上限而借不到的次数
+     */
+    public long getOverflowCount() {
+        return overflowCount.get();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder idleString = new StringBuilder();
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            if (i > 0) {
+                idleString.append('/');
+            }
+
+            idleString.append(idleCounts[i].get());
+        }
+
+        return String.format("BufferPool[allocated:%d/%d, in-use:%d, idle:%s, acquires:%d, misses:%d, overflows:%d, waiters:%d, direct:%b]",
+                allocatedBytes.get(), capacityBytes, getInUseBytes(), idleString,
+                acquireCount.get(), missCount.get(), overflowCount.get(), waiters.size(), directUsable);
+    }
+
+}
@@ -0,0 +1,297 @@
+/*
+ * Copyright (C) 2015 XiNGRZ <chenxingyu92@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package me.xingrz.prox.transport;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import me.xingrz.prox.logging.FormattingLogger;
+import me.xingrz.prox.logging.FormattingLoggers;
+import me.xingrz.prox.selectable.Acceptable;
+import me.xingrz.prox.selectable.Connectible;
+import me.xingrz.prox.selectable.Readable;
+import me.xingrz.prox.selectable.Writable;
+
+/**
+ * 事件循环
+ * <p/>
+ * 一条线程维护一个 {@link java.nio.channels.Selector}。注册在它上面的通道只能在这条线程里读写，
+ * 其他线程需要操作时通过 {@link #execute(Runnable)} 把任务投递过来。
+ * <p/>
+ * 每个就绪的 key 会在同一轮里处理完它所有就绪的事件，比如同时可读可写的通道不需要等下一轮 select。
+ * <p/>
+ * 每个事件循环带有一个 {@link TimerWheel}，会话过期、连接超时等定时任务都通过 {@link #schedule} 挂在上面，
+ * select 的超时由最近的定时器决定。
+ *
+ * @author XiNGRZ
+ */
+public class EventLoop implements Runnable, Closeable, Executor {
+
+    private static final long TIMER_TICK_MS = 50;
+    private static final int TIMER_WHEEL_SIZE = 512;
+
+    private final FormattingLogger logger;
+
+    private final String name;
+
+    private final Selector selector;
+    private final SelectedKeySet selectedKeys;
+    private final Thread thread;
+
+    private final TimerWheel timers = new TimerWheel(TIMER_TICK_MS, TIMER_WHEEL_SIZE);
+
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean wakenUp = new AtomicBoolean();
+
+    private volatile int keyCount;
+    private volatile long selectCount;
+    private volatile long eventCount;
+    private volatile long taskCount;
+
+    public EventLoop(String name) throws IOException {
+        this.name = name;
+        this.logger = FormattingLoggers.getContextLogger(name);
+        this.selector = Selector.open();
+        this.selectedKeys = SelectedKeySet.install(selector);
+        this.thread = new Thread(this, name);
+
+        if (selectedKeys == null) {
+            logger.d("Array backed selected keys not supported, fallback to iterator");
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Selector selector() {
+        return selector;
+    }
+
+    /**
+     * @return 当前是否在本事件循环的线程中
+     */
+    public boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * 在本事件循环的线程中执行任务，可以从任意线程调用
+     *
+     * @param task 任务
+     */
+    @Override
+    public void execute(Runnable task) {
+        tasks.offer(task);
+
+        if (!inEventLoop() && wakenUp.compareAndSet(false, true)) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * 设置定时器，在本事件循环的线程中到期触发
+     * 在其他线程调用时会投递到本线程再设置
+     *
+     * @param timeout 定时器，已设置过的会被刷新
+     * @param delayMs 多少毫秒后到期
+     */
+    public void schedule(final TimerWheel.Timeout timeout, final long delayMs) {
+        if (inEventLoop()) {
+            timers.schedule(timeout, delayMs);
+        } else {
+            execute(new Runnable() {
+                @Override
+                public void run() {
+                    timers.schedule(timeout, delayMs);
+                }
+            });
+        }
+    }
+
+    /**
+     * 启动事件循环线程
+     */
+    public void start() {
+        thread.start();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                wakenUp.set(false);
+
+                long delay = timers.delayUntilNextTick(System.currentTimeMillis());
+
+                if (!tasks.isEmpty() || delay == 0) {
+                    selector.selectNow();
+                } else if (delay > 0) {
+                    selector.select(delay);
+                } else {
+                    selector.select();
+                }
+
+                selectCount++;
+                keyCount = selector.keys().size();
+
+                runTasks();
+                processSelectedKeys();
+
+                timers.advance(System.currentTimeMillis());
+            }
+        } catch (ClosedSelectorException ignored) {
+            logger.d("Selector closed");
+        } catch (IOException e) {
+            logger.w(e, "Event loop running error");
+        }
+
+        logger.d("Event loop closed");
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                logger.w(e, "Uncaught exception in task");
+            }
+
+            taskCount++;
+        }
+    }
+
+    private void processSelectedKeys() {
+        if (selectedKeys != null) {
+            for (int i = 0; i < selectedKeys.size(); i++) {
+                dispatch(selectedKeys.get(i));
+            }
+
+            selectedKeys.reset();
+        } else {
+            Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+            while (iterator.hasNext()) {
+                SelectionKey key = iterator.next();
+                iterator.remove();
+                dispatch(key);
+            }
+        }
+    }
+
+    /**
+     * 处理一个 key 上所有就绪的事件
+     * 每个回调都可能关闭通道或取消 key，所以每次回调前都要重新检查
+     *
+     * @param key 就绪的 key
+     */
+    private void dispatch(SelectionKey key) {
+        if (!key.isValid()) {
+            return;
+        }
+
+        int readyOps = key.readyOps();
+        Object attachment = key.attachment();
+
+        eventCount++;
+
+        if ((readyOps & SelectionKey.OP_ACCEPT) != 0) {
+            ((Acceptable) attachment).onAcceptable(key);
+        }
+
+        if ((readyOps & SelectionKey.OP_CONNECT) != 0 && key.isValid()) {
+            ((Connectible) attachment).onConnectible(key);
+        }
+
+        if ((readyOps & SelectionKey.OP_READ) != 0 && key.isValid()) {
+            ((Readable) attachment).onReadable(key);
+        }
+
+        if ((readyOps & SelectionKey.OP_WRITE) != 0 && key.isValid()) {
+            ((Writable) attachment).onWritable(key);
+        }
+    }
+
+    /**
+     * @return 是否正在运行
+     */
+    public boolean isRunning() {
+        return thread.isAlive();
+    }
+
+    /**
+     * @return 最近一次循环时注册在 Selector 上的通道数
+     */
+    public int getKeyCount() {
+        return keyCount;
+    }
+
+    /**
+     * @return 已设置的定时器数，只在本事件循环的线程中准确
+     */
+    public int getTimerCount() {
+        return timers.size();
+    }
+
+    /**
+     * @return 累计 select 次数
+     */
+    public long getSelectCount() {
+        return selectCount;
+    }
+
+    /**
+     * @return 累计处理的就绪事件数
+     */
+    public long getEventCount() {
+        return eventCount;
+    }
+
+    /**
+     * @return 累计执行的投递任务数
+     */
+    public long getTaskCount() {
+        return taskCount;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s[keys:%d, timers:%d, selects:%d, events:%d, tasks:%d]",
+                name, keyCount, timers.size(), selectCount, eventCount, taskCount);
+    }
+
+    /**
+     * 关闭事件循环
+     *
+     * @throws IOException 关闭时遇到异常
+     */
+    @Override
+    public void close() throws IOException {
+        selector.close();
+    }
+
+}
@@ -18,70 +18,400 @@
 
 package me.xingrz.prox.transport;
 
-import android.util.SparseArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
-public class NatSessionManager<S extends AbstractTransportProxy.Session> extends SparseArray<S> {
+/**
+ * NAT 会话表
+ * <p/>
+ * 正向以五元组为键：来源地址固定是 VPN 网关地址，协议由各代理分别建表体现，
+ * 所以剩下的来源端口、目标地址、目标端口正好压进一个 long，见 {@link #key(int, int, int)}。
+ * 正向表是以 long 为键的开放寻址哈希表（线性探测，删除时回移，不留墓碑），get/put/remove 都是 O(1)。
+ * <p/>
+ * 每个会话放入时分配一个唯一的映射端口，改写后的数据包以它作为来源端口发往本地代理，
+ * 所以即使同一个来源端口同时连往多个目标也不会冲突。反向以映射端口为下标直接查数组，同样是 O(1)。
+ * <p/>
+ * 会话本身带有前后指针，串成一条按最近访问排序的 LRU 链表。超出上限时从链表尾部往前看有限几个，
+ * 优先淘汰 {@link #isEvictable(AbstractTransportProxy.Session)} 的会话，都不是才淘汰尾部那个，仍然是 O(1)。
+ * <p/>
+ * 整张表只属于一个线程（VPN 线程），除了 {@link #lookup(int)} 以外的方法都只能在这个线程调用。
+ * 反向数组以 {@link AtomicReferenceArray} 发布，其他线程可以无锁地用 {@link #lookup(int)} 只读查找。
+ *
+ * @param <S> 会话
+ */
+public class NatSessionManager<S extends AbstractTransportProxy.Session> {
+
+    private static final int MIN_CAPACITY = 16;
+
+    /**
+     * 超出上限时从 LRU 尾部往前最多看这么多个会话
+     */
+    private static final int EVICTION_SCAN_LIMIT = 64;
+
+    /**
+     * 映射端口范围，即 IANA 的动态端口段，轮流分配，尽量避免刚关闭的端口马上被复用
+     */
+    public static final int MAPPED_PORT_MIN = 49152;
+    public static final int MAPPED_PORT_COUNT = 16384;
+
+    /**
+     * 把五元组压成一个键
+     *
+     * @param sourcePort 来源端口
+     * @param remoteIp   目标地址
+     * @param remotePort 目标端口
+     * @return 键
+     */
+    public static long key(int sourcePort, int remoteIp, int remotePort) {
+        return ((long) (sourcePort & 0xFFFF) << 48)
+                | ((remoteIp & 0xFFFFFFFFL) << 16)
+                | (remotePort & 0xFFFF);
+    }
 
     private final int maxCount;
 
+    private long[] keys;
+    private Object[] values;
+    private int mask;
+
+    private int size;
+
+    private final AtomicReferenceArray<S> mapped = new AtomicReferenceArray<>(MAPPED_PORT_COUNT);
+    private int nextMappedPort;
+
+    /**
+     * LRU 链表，头部是最近访问的
+     */
+    private S head;
+    private S tail;
+
     public NatSessionManager(int maxCount) {
-        this.maxCount = maxCount;
+        this.maxCount = Math.min(maxCount, MAPPED_PORT_COUNT - 1);
+
+        // 装载因子不超过 0.5
+        int capacity = MIN_CAPACITY;
+        while (capacity < this.maxCount * 2) {
+            capacity <<= 1;
+        }
+
+        allocate(capacity);
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new Object[capacity];
+        mask = capacity - 1;
+    }
+
+    private int indexFor(long key) {
+        long hash = key * 0x9E3779B97F4A7C15L;
+        return (int) (hash >>> 32) & mask;
+    }
+
+    private int find(long key) {
+        int index = indexFor(key);
+        while (values[index] != null) {
+            if (keys[index] == key) {
+                return index;
+            }
+
+            index = (index + 1) & mask;
+        }
+
+        return -1;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * 查找会话，不影响 LRU 顺序
+     *
+     * @param key 键
+     * @return 会话，或 {@code null}
+     */
+    @SuppressWarnings("unchecked")
+    public S peek(long key) {
+        int index = find(key);
+        return index == -1 ? null : (S) values[index];
+    }
+
+    /**
+     * 查找会话，同时把它标记为最近访问
+     *
+     * @param key 键
+     * @return 会话，或 {@code null}
+     */
+    @SuppressWarnings("unchecked")
+    public S get(long key) {
+        int index = find(key);
+        if (index == -1) {
+            return null;
+        }
+
+        S session = (S) values[index];
+        moveToHead(session);
+        return session;
+    }
+
+    /**
+     * 以映射端口反查会话，同时把它标记为最近访问
+     *
+     * @param mappedPort 映射端口
+     * @return 会话，或 {@code null}
+     */
+    public S getByMappedPort(int mappedPort) {
+        S session = lookup(mappedPort);
+        if (session != null) {
+            moveToHead(session);
+        }
+
+        return session;
+    }
+
+    /**
+     * 以映射端口反查会话，不影响 LRU 顺序，可以在任意线程调用
+     *
+     * @param mappedPort 映射端口
+     * @return 会话，或 {@code null}
+     */
+    public S lookup(int mappedPort) {
+        int slot = mappedPort - MAPPED_PORT_MIN;
+        if (slot < 0 || slot >= MAPPED_PORT_COUNT) {
+            return null;
+        }
+
+        return mapped.get(slot);
+    }
+
+    /**
+     * 放入会话并为它分配映射端口，同一个键上原有的会话会被移除；超出上限时淘汰一个会话
+     *
+     * @param key     键
+     * @param session 会话
+     */
+    public void put(long key, S session) {
+        remove(key);
+
+        int index = indexFor(key);
+        while (values[index] != null) {
+            index = (index + 1) & mask;
+        }
+
+        keys[index] = key;
+        values[index] = session;
+        size++;
+
+        session.natKey = key;
+        session.mappedPort = allocateMappedPort();
+
+        linkHead(session);
+
+        // 在改写后的数据包送进内核之前发布，其他线程 accept 或收到它时一定能查到
+        mapped.set(session.mappedPort - MAPPED_PORT_MIN, session);
+
+        if (size * 2 > values.length) {
+            rehash(values.length << 1);
+        }
+
+        if (size > maxCount) {
+            evict(session);
+        }
     }
 
-    @Override
-    public void delete(int key) {
-        triggerOnRemoved(get(key));
-        super.delete(key);
+    /**
+     * 从 LRU 尾部往前找一个可以淘汰的会话，附近都是活跃的会话时只好淘汰最久未访问的那个
+     *
+     * @param added 刚放入的会话，不淘汰它
+     */
+    @SuppressWarnings("unchecked")
+    private void evict(S added) {
+        S candidate = tail;
+        for (int i = 0; i < EVICTION_SCAN_LIMIT && candidate != null; i++) {
+            if (candidate != added && isEvictable(candidate)) {
+                remove(candidate.natKey);
+                return;
+            }
+
+            candidate = (S) candidate.lruPrev;
+        }
+
+        if (tail != null && tail != added) {
+            remove(tail.natKey);
+        }
     }
 
-    @Override
-    public void removeAt(int index) {
-        triggerOnRemoved(valueAt(index));
-        super.removeAt(index);
+    /**
+     * 轮流找一个空闲的映射端口，会话数有上限，所以总能很快找到
+     */
+    private int allocateMappedPort() {
+        while (mapped.get(nextMappedPort) != null) {
+            nextMappedPort = (nextMappedPort + 1) % MAPPED_PORT_COUNT;
+        }
+
+        int slot = nextMappedPort;
+        nextMappedPort = (nextMappedPort + 1) % MAPPED_PORT_COUNT;
+
+        return MAPPED_PORT_MIN + slot;
     }
 
-    @Override
-    public void put(int key, S value) {
-        triggerOnRemoved(get(key));
-        super.put(key, value);
-        onAdded();
+    /**
+     * 移除会话
+     *
+     * @param key 键
+     * @return 被移除的会话，或 {@code null}
+     */
+    @SuppressWarnings("unchecked")
+    public S remove(long key) {
+        int index = find(key);
+        if (index == -1) {
+            return null;
+        }
+
+        S session = (S) values[index];
+        deleteAt(index);
+        mapped.set(session.mappedPort - MAPPED_PORT_MIN, null);
+        unlinkLru(session);
+        onRemoved(session);
+        return session;
     }
 
-    @Override
-    public void setValueAt(int index, S value) {
-        triggerOnRemoved(valueAt(index));
-        super.setValueAt(index, value);
+    /**
+     * 以映射端口移除会话
+     *
+     * @param mappedPort 映射端口
+     * @return 被移除的会话，或 {@code null}
+     */
+    public S removeByMappedPort(int mappedPort) {
+        S session = lookup(mappedPort);
+        if (session == null) {
+            return null;
+        }
+
+        return remove(session.natKey);
     }
 
-    @Override
+    /**
+     * 移除所有会话
+     */
+    @SuppressWarnings("unchecked")
     public void clear() {
+        S session = head;
+        while (session != null) {
+            S next = (S) session.lruNext;
+            session.lruPrev = null;
+            session.lruNext = null;
+            mapped.set(session.mappedPort - MAPPED_PORT_MIN, null);
+            onRemoved(session);
+            session = next;
+        }
+
+        head = null;
+        tail = null;
+
+        allocate(values.length);
+        size = 0;
+    }
+
+    /**
+     * 删除 {@code index} 处的条目，并把后面探测链上的条目往回移，保持查找不会提前断开
+     */
+    private void deleteAt(int index) {
+        values[index] = null;
+        size--;
 
-        for (int i = 0; i < size(); i++) {
-            removeAt(i);
+        int hole = index;
+        int next = (index + 1) & mask;
+
+        while (values[next] != null) {
+            int ideal = indexFor(keys[next]);
+
+            // ideal 不在 (hole, next] 区间内的，说明它可以移到 hole
+            boolean movable = hole <= next
+                    ? (ideal <= hole || ideal > next)
+                    : (ideal <= hole && ideal > next);
+
+            if (movable) {
+                keys[hole] = keys[next];
+                values[hole] = values[next];
+                values[next] = null;
+                hole = next;
+            }
+
+            next = (next + 1) & mask;
         }
     }
 
-    protected void onAdded() {
-        if (size() > maxCount) {
-            for (int i = 0; i < size(); i++) {
-                if (shouldRecycle(valueAt(i))) {
-                    removeAt(i);
+    private void rehash(int capacity) {
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+
+        allocate(capacity);
+
+        for (int i = 0; i < oldValues.length; i++) {
+            if (oldValues[i] != null) {
+                int index = indexFor(oldKeys[i]);
+                while (values[index] != null) {
+                    index = (index + 1) & mask;
                 }
+
+                keys[index] = oldKeys[i];
+                values[index] = oldValues[i];
             }
         }
     }
 
-    private void triggerOnRemoved(S session) {
-        if (session != null) {
-            onRemoved(session);
+    private void linkHead(S session) {
+        session.lruPrev = null;
+        session.lruNext = head;
+
+        if (head != null) {
+            head.lruPrev = session;
+        }
+
+        head = session;
+
+        if (tail == null) {
+            tail = session;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void unlinkLru(S session) {
+        if (session.lruPrev != null) {
+            session.lruPrev.lruNext = session.lruNext;
+        } else if (head == session) {
+            head = (S) session.lruNext;
+        }
+
+        if (session.lruNext != null) {
+            session.lruNext.lruPrev = session.lruPrev;
+        } else if (tail == session) {
+            tail = (S) session.lruPrev;
+        }
+
+        session.lruPrev = null;
+        session.lruNext = null;
+    }
+
+    private void moveToHead(S session) {
+        if (head != session) {
+            unlinkLru(session);
+            linkHead(session);
         }
     }
 
     protected void onRemoved(S session) {
     }
 
-    protected boolean shouldRecycle(S session) {
-        return false;
+    /**
+     * 超出上限时是否可以优先淘汰这个会话，比如已完成的、还没开始用的
+     *
+     * @param session 会话
+     * @return 默认都可以
+     */
+    protected boolean isEvictable(S session) {
+        return true;
     }
 
 }
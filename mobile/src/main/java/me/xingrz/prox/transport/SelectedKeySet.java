@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2015 XiNGRZ <chenxingyu92@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package me.xingrz.prox.transport;
+
+import java.lang.reflect.Field;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * 基于数组的 selected keys 集合
+ * <p/>
+ * 通过反射替换掉 {@link java.nio.channels.Selector} 内部的 {@code HashSet}，让 select 之后可以直接按下标遍历，
+ * 不需要每次分配迭代器、也不需要逐个从哈希表中删除。
+ * <p/>
+ * Selector 的实现只会调用 {@link #add(SelectionKey)}，{@link #contains(Object)} 总是返回 {@code false}，
+ * 所以每一轮处理完都必须 {@link #reset()}。
+ *
+ * @author XiNGRZ
+ */
+final class SelectedKeySet extends AbstractSet<SelectionKey> {
+
+    /**
+     * 各实现中 selected keys 的字段名，前者是实现内部添加用的，后者是 {@link Selector#selectedKeys()} 返回的
+     */
+    private static final String[][] FIELD_NAMES = {
+            // OpenJDK 以及 Android N 以后
+            {"selectedKeys", "publicSelectedKeys"},
+            // Android N 以前
+            {"mutableSelectedKeys", "selectedKeys"},
+    };
+
+    /**
+     * 尝试把新的集合装进 {@code selector}
+     *
+     * @param selector 刚打开、还没有注册任何通道的 Selector
+     * @return 装好的集合，或 {@code null} 表示当前实现不支持，此时应退回到普通的迭代方式
+     */
+    static SelectedKeySet install(Selector selector) {
+        SelectedKeySet keySet = new SelectedKeySet();
+
+        for (String[] names : FIELD_NAMES) {
+            Field internal = findField(selector.getClass(), names[0]);
+            Field exposed = findField(selector.getClass(), names[1]);
+            if (internal == null || exposed == null) {
+                continue;
+            }
+
+            try {
+                internal.setAccessible(true);
+                exposed.setAccessible(true);
+
+                internal.set(selector, keySet);
+                exposed.set(selector, keySet);
+
+                return keySet;
+            } catch (RuntimeException | IllegalAccessException ignored) {
+                // 比如 Java 9 以后的模块限制，退回到普通方式
+            }
+        }
+
+        return null;
+    }
+
+    private static Field findField(Class<?> cls, String name) {
+        for (; cls != null; cls = cls.getSuperclass()) {
+            try {
+                Field field = cls.getDeclaredField(name);
+                if (Set.class.isAssignableFrom(field.getType())) {
+                    return field;
+                } else {
+                    return null;
+                }
+            } catch (NoSuchFieldException ignored) {
+            }
+        }
+
+        return null;
+    }
+
+    private SelectionKey[] keys = new SelectionKey[256];
+    private int size;
+
+    @Override
+    public boolean add(SelectionKey key) {
+        if (key == null) {
+            return false;
+        }
+
+        if (size == keys.length) {
+            SelectionKey[] grown = new SelectionKey[keys.length << 1];
+            System.arraycopy(keys, 0, grown, 0, size);
+            keys = grown;
+        }
+
+        keys[size++] = key;
+        return true;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        return false;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return false;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @param index 下标
+     * @return 第 {@code index} 个就绪的 key
+     */
+    SelectionKey get(int index) {
+        return keys[index];
+    }
+
+    /**
+     * 清空集合，同时释放对 key 的引用
+     */
+    void reset() {
+        for (int i = 0; i < size; i++) {
+            keys[i] = null;
+        }
+
+        size = 0;
+    }
+
+    @Override
+    public Iterator<SelectionKey> iterator() {
+        return new Iterator<SelectionKey>() {
+            private int index;
+
+            @Override
+            public boolean hasNext() {
+                return index < size;
+            }
+
+            @Override
+            public SelectionKey next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+
+                return keys[index++];
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+}
@@ -0,0 +1,254 @@
+/*
+ * Copyright (C) 2015 XiNGRZ <chenxingyu92@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package me.xingrz.prox.transport;
+
+import me.xingrz.prox.logging.FormattingLogger;
+import me.xingrz.prox.logging.FormattingLoggers;
+
+/**
+ * 哈希时间轮
+ * <p/>
+ * 定时器按到期的 tick 挂在对应槽位的双向链表上，设置、刷新、取消都是 O(1)。
+ * 由所属的 {@link EventLoop} 在每轮 select 之后推进，所以不是线程安全的，只能在事件循环线程中使用。
+ * <p/>
+ * 超过一圈的定时器会在经过时留在原槽位，直到真正到期。
+ *
+ * @author XiNGRZ
+ */
+public class TimerWheel {
+
+    /**
+     * 定时器，可以反复设置，不需要每次创建新的实例
+     */
+    public static class Timeout {
+
+        private final Runnable task;
+
+        private TimerWheel wheel;
+        private int bucket;
+
+        private Timeout prev;
+        private Timeout next;
+
+        private Timeout nextExpired;
+        private boolean firing;
+
+        private long deadline;
+
+        public Timeout(Runnable task) {
+            this.task = task;
+        }
+
+        /**
+         * @return 是否已设置且还未到期
+         */
+        public boolean isArmed() {
+            return wheel != null;
+        }
+
+        /**
+         * @return 到期时间
+         */
+        public long deadline() {
+            return deadline;
+        }
+
+        /**
+         * 取消定时器，未设置时什么也不做
+         */
+        public void cancel() {
+            if (wheel != null) {
+                wheel.unlink(this);
+            }
+
+            firing = false;
+        }
+
+    }
+
+    private static final FormattingLogger logger = FormattingLoggers.getContextLogger();
+
+    private final long tickMs;
+
+    private final Timeout[] buckets;
+    private final int mask;
+
+    private long currentTick = -1;
+
+    private int size;
+
+    /**
+     * @param tickMs     每个 tick 的毫秒数，也就是定时器的精度
+     * @param wheelSize 槽位数，必须是 2 的幂
+     */
+    public TimerWheel(long tickMs, int wheelSize) {
+        if (Integer.bitCount(wheelSize) != 1) {
+            throw new IllegalArgumentException("Wheel size must be a power of 2");
+        }
+
+        this.tickMs = tickMs;
+        this.buckets = new Timeout[wheelSize];
+        this.mask = wheelSize - 1;
+    }
+
+    /**
+     * @return 已设置的定时器数
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * 设置定时器，如果它已经设置过，会先取消再重新设置
+     *
+     * @param timeout 定时器
+     * @param delayMs 多少毫秒后到期
+     */
+    public void schedule(Timeout timeout, long delayMs) {
+        timeout.cancel();
+
+        long now = System.currentTimeMillis();
+        if (currentTick == -1) {
+            currentTick = now / tickMs;
+        }
+
+        timeout.deadline = now + Math.max(0, delayMs);
+
+        // 不能落在已经走过的 tick 上，否则要等一整圈
+        long tick = Math.max(timeout.deadline / tickMs, currentTick);
+
+        int index = (int) (tick & mask);
+
+        timeout.wheel = this;
+        timeout.bucket = index;
+        timeout.prev = null;
+        timeout.next = buckets[index];
+        if (timeout.next != null) {
+            timeout.next.prev = timeout;
+        }
+        buckets[index] = timeout;
+
+        size++;
+    }
+
+    private void unlink(Timeout timeout) {
+        if (timeout.prev != null) {
+            timeout.prev.next = timeout.next;
+        } else {
+            buckets[timeout.bucket] = timeout.next;
+        }
+
+        if (timeout.next != null) {
+            timeout.next.prev = timeout.prev;
+        }
+
+        timeout.wheel = null;
+        timeout.prev = null;
+        timeout.next = null;
+
+        size--;
+    }
+
+    /**
+     * 距离下一个可能有定时器到期的 tick 还有多久，用作 select 的超时
+     *
+     * @param now 当前时间
+     * @return 毫秒数，{@code 0} 表示已经有到期的，{@code -1} 表示没有任何定时器
+     */
+    public long delayUntilNextTick(long now) {
+        if (size == 0) {
+            return -1;
+        }
+
+        long nowTick = now / tickMs;
+        long start = currentTick == -1 ? nowTick : currentTick;
+
+        // 已经落后了，马上推进
+        if (start < nowTick) {
+            return 0;
+        }
+
+        // 往前找第一个非空的槽位，最多一圈，等到该 tick 结束时槽位里本圈的定时器就都到期了
+        for (int i = 0; i < buckets.length; i++) {
+            if (buckets[(int) ((start + i) & mask)] != null) {
+                return (start + i + 1) * tickMs - now;
+            }
+        }
+
+        return tickMs;
+    }
+
+    /**
+     * 推进时间轮到 {@code now}，触发所有到期的定时器
+     *
+     * @param now 当前时间
+     */
+    public void advance(long now) {
+        if (currentTick == -1) {
+            currentTick = now / tickMs;
+        }
+
+        long nowTick = now / tickMs;
+
+        // 落后超过一圈时每个槽位只需要检查一次
+        long steps = Math.min(nowTick - currentTick + 1, buckets.length);
+
+        Timeout expired = null;
+
+        for (long i = 0; i < steps; i++) {
+            int index = (int) ((currentTick + i) & mask);
+
+            Timeout timeout = buckets[index];
+            while (timeout != null) {
+                Timeout next = timeout.next;
+
+                if (timeout.deadline <= now) {
+                    unlink(timeout);
+                    timeout.firing = true;
+                    timeout.nextExpired = expired;
+                    expired = timeout;
+                }
+
+                timeout = next;
+            }
+        }
+
+        if (nowTick >= currentTick) {
+            currentTick = nowTick;
+        }
+
+        // 先摘下所有到期的再逐个触发，回调里可以随意设置或取消其他定时器
+        while (expired != null) {
+            Timeout timeout = expired;
+            expired = timeout.nextExpired;
+            timeout.nextExpired = null;
+
+            if (timeout.firing) {
+                timeout.firing = false;
+
+                try {
+                    timeout.task.run();
+                } catch (RuntimeException e) {
+                    logger.w(e, "Uncaught exception in timer");
+                }
+            }
+        }
+    }
+
+}
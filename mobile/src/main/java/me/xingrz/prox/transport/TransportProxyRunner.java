@@ -18,38 +18,41 @@
 
 package me.xingrz.prox.transport;
 
+import org.apache.commons.io.IOUtils;
+
 import java.io.Closeable;
 import java.io.IOException;
-import java.nio.channels.ClosedSelectorException;
-import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
-import java.util.Iterator;
 
 import me.xingrz.prox.logging.FormattingLogger;
 import me.xingrz.prox.logging.FormattingLoggers;
-import me.xingrz.prox.selectable.Acceptable;
-import me.xingrz.prox.selectable.Connectible;
-import me.xingrz.prox.selectable.Readable;
-import me.xingrz.prox.selectable.Writable;
 
 /**
  * 代理服务器
  * <p/>
- * 该类内部通过一条线程维护了一个 {@link java.nio.channels.Selector}，让 {@link me.xingrz.prox.tcp.TcpProxy}
- * 和 {@link me.xingrz.prox.udp.UdpProxy} 能够运行在统一条线程之上。
+ * 该类内部维护了一组 {@link EventLoop}：{@link me.xingrz.prox.tcp.TcpProxy} 和
+ * {@link me.xingrz.prox.udp.UdpProxy} 的监听通道以及 UDP 会话都运行在 boss 循环上，
+ * 每个 TCP 会话的一对隧道则按哈希固定在某一个 worker 循环上，让多核设备可以同时处理多个会话。
  *
  * @author XiNGRZ
  */
-public class TransportProxyRunner implements Runnable, Closeable {
+public class TransportProxyRunner implements Closeable {
 
     protected final FormattingLogger logger = FormattingLoggers.getContextLogger();
 
-    private final Selector selector;
-    private final Thread thread;
+    private final EventLoop boss;
+    private final EventLoop[] workers;
+
+    /**
+     * @param workerCount worker 事件循环的数量，至少为 1
+     * @throws IOException 无法打开 Selector
+     */
+    public TransportProxyRunner(int workerCount) throws IOException {
+        boss = new EventLoop("ProxyBoss");
 
-    public TransportProxyRunner() throws IOException {
-        selector = Selector.open();
-        thread = new Thread(this, "ProxyThread");
+        workers = new EventLoop[Math.max(1, workerCount)];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new EventLoop("ProxyWorker-" + i);
+        }
     }
 
     /**
@@ -63,7 +66,7 @@ public class TransportProxyRunner implements Runnable, Closeable {
     public <P extends AbstractTransportProxy> P create(Class<P> cls) throws IOException {
         try {
             P instance = cls.newInstance();
-            instance.start(selector);
+            instance.start(this);
             return instance;
         } catch (InstantiationException | IllegalAccessException e) {
             return null;
@@ -71,51 +74,66 @@ public class TransportProxyRunner implements Runnable, Closeable {
     }
 
     /**
-     * 启动 Selector 进程
+     * @return 运行监听通道的 boss 事件循环
+     */
+    public EventLoop boss() {
+        return boss;
+    }
+
+    /**
+     * 按哈希选出一个 worker 事件循环，同样的哈希总是得到同一个循环
+     *
+     * @param hash 哈希值
+     * @return worker 事件循环
+     */
+    public EventLoop worker(int hash) {
+        return workers[(hash & 0x7FFFFFFF) % workers.length];
+    }
+
+    /**
+     * @return 所有 worker 事件循环，可用于查看各循环的负载
+     */
+    public EventLoop[] workers() {
+        return workers.clone();
+    }
+
+    /**
+     * 启动所有事件循环
      */
     public void start() {
-        thread.start();
+        boss.start();
+        for (EventLoop worker : workers) {
+            worker.start();
+        }
     }
 
-    @Override
-    public void run() {
-        try {
-            while (true) {
-                selector.select();
-                Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
-                while (iterator.hasNext()) {
-                    SelectionKey key = iterator.next();
-                    iterator.remove();
-
-                    if (!key.isValid()) {
-                        continue;
-                    }
-
-                    if (key.isAcceptable()) {
-                        ((Acceptable) key.attachment()).onAcceptable(key);
-                    } else if (key.isConnectable()) {
-                        ((Connectible) key.attachment()).onConnectible(key);
-                    } else if (key.isReadable()) {
-                        ((Readable) key.attachment()).onReadable(key);
-                    } else if (key.isWritable()) {
-                        ((Writable) key.attachment()).onWritable(key);
-                    }
-                }
+    /**
+     * @return 是否所有事件循环都正在运行
+     */
+    public boolean isRunning() {
+        if (!boss.isRunning()) {
+            return false;
+        }
+
+        for (EventLoop worker : workers) {
+            if (!worker.isRunning()) {
+                return false;
             }
-        } catch (ClosedSelectorException ignored) {
-            logger.d("Proxy selector closed");
-        } catch (IOException e) {
-            logger.w(e, "Proxy running error");
         }
 
-        logger.d("Proxy closed");
+        return true;
     }
 
     /**
-     * @return 是否正在运行
+     * 输出各事件循环的负载，以及缓冲区池的占用
      */
-    public boolean isRunning() {
-        return thread.isAlive();
+    public void logLoad() {
+        logger.d("Load %s", boss);
+        for (EventLoop worker : workers) {
+            logger.d("Load %s", worker);
+        }
+
+        logger.d("Buffers %s", BufferPool.getInstance());
     }
 
     /**
@@ -125,7 +143,10 @@ public class TransportProxyRunner implements Runnable, Closeable {
      */
     @Override
     public void close() throws IOException {
-        selector.close();
+        IOUtils.closeQuietly(boss);
+        for (EventLoop worker : workers) {
+            IOUtils.closeQuietly(worker);
+        }
     }
 
 }
@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2015 XiNGRZ <chenxingyu92@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package me.xingrz.prox.tun;
+
+import java.nio.ByteBuffer;
+
+/**
+ * TUN 读写所用的数据包槽位
+ * <p/>
+ * 优先使用 direct buffer，这样 {@link java.nio.channels.FileChannel} 读写时不需要再经过一次临时缓冲区的拷贝。
+ * 但各个 Header 类是直接在 {@code byte[]} 上原地改写的，所以只有当 direct buffer 同时带有底层数组时才使用它
+ * （比如 ART），否则退回到普通的 heap buffer。
+ *
+ * @author XiNGRZ
+ */
+public class PacketBuffer {
+
+    private final ByteBuffer buffer;
+
+    private int length;
+
+    public PacketBuffer(int capacity) {
+        ByteBuffer direct = ByteBuffer.allocateDirect(capacity);
+        if (direct.hasArray() && direct.arrayOffset() == 0) {
+            buffer = direct;
+        } else {
+            buffer = ByteBuffer.wrap(new byte[capacity]);
+        }
+    }
+
+    /**
+     * @return 数据包内容，供各个 Header 类原地读写
+     */
+    public byte[] array() {
+        return buffer.array();
+    }
+
+    /**
+     * @return 数据包长度
+     */
+    public int length() {
+        return length;
+    }
+
+    /**
+     * @return 是否使用了 direct buffer
+     */
+    public boolean isDirect() {
+        return buffer.isDirect();
+    }
+
+    /**
+     * 准备从 TUN 读入
+     */
+    ByteBuffer prepareRead() {
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * 完成读入
+     */
+    void finishRead() {
+        length = buffer.position();
+    }
+
+    /**
+     * 准备写出到 TUN，数据包是原地改写的，所以长度与读入时一致
+     */
+    ByteBuffer prepareWrite() {
+        buffer.clear();
+        buffer.limit(length);
+        return buffer;
+    }
+
+}
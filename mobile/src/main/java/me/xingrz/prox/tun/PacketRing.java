@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2015 XiNGRZ <chenxingyu92@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package me.xingrz.prox.tun;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 单生产者、单消费者的数据包环形队列
+ * <p/>
+ * 槽位在创建时一次性分配好，生产者通过 {@link #claim()} 拿到空闲槽位并原地写入，{@link #publish()} 后交给消费者；
+ * 消费者通过 {@link #peek()} 取到槽位处理完后 {@link #release()} 归还。整个过程没有锁，也不产生垃圾。
+ * <p/>
+ * 只能有一条线程生产、一条线程消费。
+ *
+ * @author XiNGRZ
+ */
+public class PacketRing {
+
+    private static final int SPIN_TRIES = 100;
+
+    private final PacketBuffer[] slots;
+    private final int mask;
+
+    /**
+     * 下一个要被消费的位置，只由消费者写
+     */
+    private final AtomicLong head = new AtomicLong();
+
+    /**
+     * 下一个要被生产的位置，只由生产者写
+     */
+    private final AtomicLong tail = new AtomicLong();
+
+    private volatile Thread waitingProducer;
+    private volatile Thread waitingConsumer;
+
+    private volatile boolean closed;
+
+    /**
+     * @param capacity   槽位数，必须是 2 的幂
+     * @param packetSize 每个槽位的大小
+     */
+    public PacketRing(int capacity, int packetSize) {
+        if (Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Capacity must be a power of 2");
+        }
+
+        slots = new PacketBuffer[capacity];
+        for (int i = 0; i < capacity; i++) {
+            slots[i] = new PacketBuffer(packetSize);
+        }
+
+        mask = capacity - 1;
+    }
+
+    public int capacity() {
+        return slots.length;
+    }
+
+    /**
+     * @return 已发布但还没被消费的槽位数
+     */
+    public int size() {
+        return (int) (tail.get() - head.get());
+    }
+
+    /**
+     * 生产者取得下一个空闲槽位，队列满时阻塞等待消费者归还
+     * 在 {@link #publish()} 之前可以反复使用同一个槽位，比如数据包不需要发布时直接用它读下一个包
+     *
+     * @return 空闲槽位，或 {@code null} 表示队列已关闭
+     */
+    public PacketBuffer claim() {
+        long position = tail.get();
+
+        int tries = 0;
+        while (position - head.get() >= slots.length) {
+            if (closed) {
+                return null;
+            }
+
+            if (tries++ < SPIN_TRIES) {
+                Thread.yield();
+                continue;
+            }
+
+            waitingProducer = Thread.currentThread();
+            if (position - head.get() >= slots.length && !closed) {
+                LockSupport.park(this);
+            }
+            waitingProducer = null;
+        }
+
+        return slots[(int) position & mask];
+    }
+
+    /**
+     * 生产者发布刚才 {@link #claim()} 到的槽位
+     */
+    public void publish() {
+        // 必须是 volatile 写，否则消费者检查完队列为空、准备 park 时可能错过这次唤醒
+        tail.set(tail.get() + 1);
+
+        Thread consumer = waitingConsumer;
+        if (consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+    }
+
+    /**
+     * 消费者取得下一个已发布的槽位，队列空时阻塞等待
+     *
+     * @return 已发布的槽位，或 {@code null} 表示队列已关闭且已清空
+     */
+    public PacketBuffer take() {
+        long position = head.get();
+
+        int tries = 0;
+        while (position >= tail.get()) {
+            if (closed) {
+                return null;
+            }
+
+            if (tries++ < SPIN_TRIES) {
+                Thread.yield();
+                continue;
+            }
+
+            waitingConsumer = Thread.currentThread();
+            if (position >= tail.get() && !closed) {
+                LockSupport.park(this);
+            }
+            waitingConsumer = null;
+        }
+
+        return slots[(int) position & mask];
+    }
+
+    /**
+     * 消费者不阻塞地取得下一个已发布的槽位
+     *
+     * @return 已发布的槽位，或 {@code null} 表示暂时没有
+     */
+    public PacketBuffer peek() {
+        long position = head.get();
+        if (position >= tail.get()) {
+            return null;
+        }
+
+        return slots[(int) position & mask];
+    }
+
+    /**
+     * 消费者归还刚才取得的槽位
+     */
+    public void release() {
+        // 同 publish()，必须是 volatile 写
+        head.set(head.get() + 1);
+
+        Thread producer = waitingProducer;
+        if (producer != null) {
+            LockSupport.unpark(producer);
+        }
+    }
+
+    /**
+     * 关闭队列，唤醒所有等待的线程
+     */
+    public void close() {
+        closed = true;
+
+        Thread producer = waitingProducer;
+        if (producer != null) {
+            LockSupport.unpark(producer);
+        }
+
+        Thread consumer = waitingConsumer;
+        if (consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+    }
+
+}
@@ -0,0 +1,350 @@
+/*
+ * Copyright (C) 2015 XiNGRZ <chenxingyu92@gmail.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package me.xingrz.prox.tun;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.Closeable;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
+
+import me.xingrz.prox.logging.FormattingLogger;
+import me.xingrz.prox.logging.FormattingLoggers;
+
+/**
+ * TUN 设备读写
+ * <p/>
+ * 通过 {@link java.nio.channels.FileChannel} 读写 VPN 接口。每次唤醒时尽量把已就绪的数据包一次读完，
+ * 交给 {@link PacketHandler} 处理后再写回。
+ * <p/>
+ * 有两种工作模式：
+ * <ul>
+ * <li>单线程：调用 {@link #drain(PacketHandler)} 的线程读完一批、处理完后自己批量写回</li>
+ * <li>流水线：调用 {@link #drain(PacketHandler)} 的线程只负责读取和处理，处理完的包经 {@link PacketRing}
+ * 交给独立的写线程写回，写得慢也不会拖住读取</li>
+ * </ul>
+ * 注意 TUN 的每次 {@code write()} 都会被当作一个完整的 IP 包，所以不能用 gathering write 把多个包合并成一次写入，
+ * 批量写回只是把写操作集中到读取之后，不会减少写的次数。
+ *
+ * @author XiNGRZ
+ */
+public class TunInterface implements Closeable {
+
+    /**
+     * 数据包处理，即读写之间的工作阶段
+     */
+    public static interface PacketHandler {
+
+        /**
+         * 收到一个数据包，可以在 {@link PacketBuffer#array()} 上原地改写
+         *
+         * @param packet 数据包
+         * @return {@code true} 表示需要把改写后的包写回 TUN
+         * @throws IOException 处理时遇到的异常
+         */
+        public boolean onPacketReceived(PacketBuffer packet) throws IOException;
+
+    }
+
+    private static final FormattingLogger logger = FormattingLoggers.getContextLogger();
+
+    private static final int BATCH_SIZE = 32;
+
+    private static final int RING_CAPACITY = 128;
+
+    private static final long REPORT_INTERVAL_MS = TimeUnit.SECONDS.toMillis(10);
+
+    private final FileInputStream inputStream;
+    private final FileOutputStream outputStream;
+
+    private final FileChannel input;
+    private final FileChannel output;
+
+    /**
+     * 单线程模式下使用
+     */
+    private final PacketBuffer[] slots;
+    private final PacketBuffer[] pending;
+    private int pendingCount;
+
+    /**
+     * 流水线模式下使用
+     */
+    private final PacketRing ring;
+    private final Thread writer;
+
+    private boolean drainable = true;
+
+    private long packetsRead;
+    private long readSyscalls;
+
+    private volatile long packetsWritten;
+    private volatile long writeSyscalls;
+
+    private long lastReportTime = System.currentTimeMillis();
+    private long lastReportPackets;
+    private volatile float packetsPerSecond;
+
+    /**
+     * @param fd         VPN 接口
+     * @param packetSize 数据包最大长度，即 MTU
+     * @param pipelined  是否使用独立的写线程
+     */
+    public TunInterface(FileDescriptor fd, int packetSize, boolean pipelined) {
+        inputStream = new FileInputStream(fd);
+        outputStream = new FileOutputStream(fd);
+
+        input = inputStream.getChannel();
+        output = outputStream.getChannel();
+
+        if (pipelined) {
+            slots = null;
+            pending = null;
+
+            ring = new PacketRing(RING_CAPACITY, packetSize);
+
+            writer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    writeLoop();
+                }
+            }, "VpnWriter");
+            writer.start();
+        } else {
+            slots = new PacketBuffer[BATCH_SIZE];
+            for (int i = 0; i < BATCH_SIZE; i++) {
+                slots[i] = new PacketBuffer(packetSize);
+            }
+
+            pending = new PacketBuffer[BATCH_SIZE];
+
+            ring = null;
+            writer = null;
+        }
+
+        logger.d("TUN interface opened, pipelined %s", pipelined);
+    }
+
+    /**
+     * 阻塞读取直至有数据包，再顺带读完所有已就绪的数据包，逐个交给 {@code handler} 处理后写回
+     *
+     * @param handler 数据包处理
+     * @return {@code false} 表示 TUN 已关闭
+     * @throws IOException 读写遇到的异常
+     */
+    public boolean drain(PacketHandler handler) throws IOException {
+        boolean open = ring == null ? drainInline(handler) : drainPipelined(handler);
+        report();
+        return open;
+    }
+
+    private boolean drainInline(PacketHandler handler) throws IOException {
+        int count = 0;
+
+        do {
+            PacketBuffer packet = slots[count];
+
+            if (!read(packet)) {
+                flush();
+                return false;
+            }
+
+            if (packet.length() == 0) {
+                continue;
+            }
+
+            count++;
+
+            if (handler.onPacketReceived(packet)) {
+                pending[pendingCount++] = packet;
+            }
+        } while (count < BATCH_SIZE && hasMore());
+
+        flush();
+        return true;
+    }
+
+    private boolean drainPipelined(PacketHandler handler) throws IOException {
+        if (!writer.isAlive()) {
+            logger.w("TUN writer unexpectedly stopped");
+            return false;
+        }
+
+        int count = 0;
+
+        do {
+            // 不需要写回的包不发布，下一轮接着用同一个槽位
+            PacketBuffer packet = ring.claim();
+            if (packet == null) {
+                return false;
+            }
+
+            if (!read(packet)) {
+                return false;
+            }
+
+            if (packet.length() == 0) {
+                continue;
+            }
+
+            count++;
+
+            if (handler.onPacketReceived(packet)) {
+                ring.publish();
+            }
+        } while (count < BATCH_SIZE && hasMore());
+
+        return true;
+    }
+
+    private boolean read(PacketBuffer packet) throws IOException {
+        int size = input.read(packet.prepareRead());
+        readSyscalls++;
+
+        if (size == -1) {
+            return false;
+        }
+
+        packet.finishRead();
+
+        if (size > 0) {
+            packetsRead++;
+        }
+
+        return true;
+    }
+
+    /**
+     * 还有没有已就绪的数据包
+     * 有些系统的 TUN 不支持 {@code FIONREAD}，遇到异常就不再尝试，只好每次唤醒读一个包
+     */
+    private boolean hasMore() {
+        if (!drainable) {
+            return false;
+        }
+
+        try {
+            return inputStream.available() > 0;
+        } catch (IOException e) {
+            logger.d("TUN does not support available(), draining disabled");
+            drainable = false;
+            return false;
+        }
+    }
+
+    /**
+     * 单线程模式下把等待写回的数据包逐个写回 TUN
+     */
+    private void flush() throws IOException {
+        for (int i = 0; i < pendingCount; i++) {
+            write(pending[i]);
+            pending[i] = null;
+        }
+
+        pendingCount = 0;
+    }
+
+    /**
+     * 流水线模式下的写线程
+     */
+    private void writeLoop() {
+        PacketBuffer packet;
+
+        try {
+            while ((packet = ring.take()) != null) {
+                write(packet);
+                ring.release();
+            }
+        } catch (IOException e) {
+            logger.w(e, "TUN writer ended with exception");
+        } finally {
+            ring.close();
+        }
+
+        logger.d("TUN writer finished");
+    }
+
+    private void write(PacketBuffer packet) throws IOException {
+        ByteBuffer buffer = packet.prepareWrite();
+        while (buffer.hasRemaining()) {
+            output.write(buffer);
+            writeSyscalls++;
+        }
+
+        packetsWritten++;
+    }
+
+    private void report() {
+        long now = System.currentTimeMillis();
+        long elapsed = now - lastReportTime;
+        if (elapsed < REPORT_INTERVAL_MS) {
+            return;
+        }
+
+        packetsPerSecond = (packetsRead - lastReportPackets) * 1000f / elapsed;
+
+        lastReportTime = now;
+        lastReportPackets = packetsRead;
+
+        logger.d("TUN %.1f packets/s, %.2f syscalls/packet, read %d, written %d, ring %d",
+                packetsPerSecond, getSyscallsPerPacket(), packetsRead, packetsWritten,
+                ring == null ? 0 : ring.size());
+    }
+
+    /**
+     * @return 最近一个统计周期内每秒读入的数据包数
+     */
+    public float getPacketsPerSecond() {
+        return packetsPerSecond;
+    }
+
+    /**
+     * @return 平均每个数据包（读入与写回）所用的系统调用次数
+     */
+    public float getSyscallsPerPacket() {
+        long packets = packetsRead + packetsWritten;
+        return packets == 0 ? 0 : (float) (readSyscalls + writeSyscalls) / packets;
+    }
+
+    public long getPacketsRead() {
+        return packetsRead;
+    }
+
+    public long getPacketsWritten() {
+        return packetsWritten;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (ring != null) {
+            ring.close();
+        }
+
+        IOUtils.closeQuietly(input);
+        IOUtils.closeQuietly(output);
+        IOUtils.closeQuietly(inputStream);
+        IOUtils.closeQuietly(outputStream);
+    }
+
+}
@@ -19,7 +19,6 @@
 package me.xingrz.prox.udp;
 
 import java.io.IOException;
-import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.DatagramChannel;
@@ -36,7 +35,11 @@ import me.xingrz.prox.udp.dns.DnsReverseCache;
 
 public class UdpProxy extends AbstractTransportProxy<DatagramChannel, UdpProxySession> implements Readable {
 
-    private static final int UDP_SESSION_MAX_COUNT = 20;
+    /**
+     * 每个 UDP 会话从创建起就占着一个 socket，老系统每个进程只有 1024 个文件描述符，还要分给 TCP 隧道，
+     * 所以上限取决于描述符而不是映射端口
+     */
+    private static final int UDP_SESSION_MAX_COUNT = 512;
     private static final long UDP_SESSION_TIMEOUT_MS = TimeUnit.SECONDS.toMillis(30);
 
     private final ByteBuffer buffer = ByteBuffer.allocate(0xFFFF);
@@ -65,26 +68,28 @@ public class UdpProxy extends AbstractTransportProxy<DatagramChannel, UdpProxySe
     }
 
     @Override
-    protected UdpProxySession createSession(int sourcePort, InetAddress remoteAddress, int remotePort)
+    protected UdpProxySession createSession(int sourcePort, int remoteIp, int remotePort)
             throws IOException {
-        return new UdpProxySession(this, selector, sourcePort, remoteAddress, remotePort);
+        return new UdpProxySession(this, runner.boss(), sourcePort, remoteIp, remotePort);
     }
 
     /**
      * 将 UDP 包发到公网，并等待同一个端口的返回
+     * 同一五元组上的后续数据包复用已有会话
      *
-     * @param sourcePort    本地来源端口，作为识别
-     * @param remoteAddress 目标地址
-     * @param remotePort    目标端口
-     * @return 所创建的会话
+     * @param sourcePort 本地来源端口
+     * @param remoteIp   目标地址
+     * @param remotePort 目标端口
+     * @return 会话
      */
     @Override
-    public UdpProxySession pickSession(int sourcePort, InetAddress remoteAddress, int remotePort) throws IOException {
-        UdpProxySession session = super.pickSession(sourcePort, remoteAddress, remotePort);
+    public UdpProxySession pickSession(int sourcePort, int remoteIp, int remotePort) throws IOException {
+        UdpProxySession session = super.pickSession(sourcePort, remoteIp, remotePort);
 
-        logger.v("Created session %08x local:%d -> in:%d -> out:%d -> %s:%d",
+        logger.v("Picked session %08x local:%d -> mapped:%d -> in:%d -> out:%d -> %s:%d",
                 session.hashCode(),
                 sourcePort,
+                session.getMappedPort(),
                 port(),
                 session.socket().getLocalPort(),
                 session.getRemoteAddress().getHostAddress(), session.getRemotePort());
@@ -93,7 +98,7 @@ public class UdpProxy extends AbstractTransportProxy<DatagramChannel, UdpProxySe
     }
 
     /**
-     * 收到了刚才 VPN 网关 {@link #createSession(int, java.net.InetAddress, int)} 过后的转发数据包
+     * 收到了刚才 VPN 网关 {@link #createSession(int, int, int)} 过后的转发数据包
      * 那么我们就将它发到该去的地方吧！
      */
     @Override
@@ -114,7 +119,7 @@ public class UdpProxy extends AbstractTransportProxy<DatagramChannel, UdpProxySe
             return;
         }
 
-        UdpProxySession session = getSession(source.getPort());
+        UdpProxySession session = findSession(source.getPort());
         if (session == null) {
             logger.w("Ignored packet from %d without session", source.getPort());
             return;
@@ -128,7 +133,7 @@ public class UdpProxy extends AbstractTransportProxy<DatagramChannel, UdpProxySe
             session.send(buffer);
         } catch (IOException e) {
             logger.w(e, "Failed to send out session %08x", session.hashCode());
-            finishSession(session.getSourcePort());
+            releaseSession(session);
             return;
         }
 
@@ -153,7 +158,7 @@ public class UdpProxy extends AbstractTransportProxy<DatagramChannel, UdpProxySe
             remoteChannel.receive(buffer);
         } catch (IOException e) {
             logger.w(e, "Failed to receive session %08x from remote channel, close", session.hashCode());
-            finishSession(session.getSourcePort());
+            releaseSession(session);
             return;
         }
 
@@ -164,11 +169,11 @@ public class UdpProxy extends AbstractTransportProxy<DatagramChannel, UdpProxySe
         }
 
         InetSocketAddress address = new InetSocketAddress(
-                ProxVpnService.FAKE_CLIENT_ADDRESS, session.getSourcePort());
+                ProxVpnService.FAKE_CLIENT_ADDRESS, session.getMappedPort());
 
         logger.v("Received in session %08x %s:%d <- in:%d <- out:%d <- %s:%d",
                 session.hashCode(),
-                address.getHostString(), session.getSourcePort(),
+                address.getHostString(), session.getMappedPort(),
                 port(),
                 session.socket().getLocalPort(),
                 session.getRemoteAddress().getHostAddress(), session.getRemotePort());
@@ -177,24 +182,27 @@ public class UdpProxy extends AbstractTransportProxy<DatagramChannel, UdpProxySe
             serverChannel.send(buffer, address);
         } catch (IOException e) {
             logger.w(e, "Failed to feedback session %08x to local channel, close", session.hashCode());
-            finishSession(session.getSourcePort());
+            releaseSession(session);
             return;
         }
 
-        session.finish();
+        // DNS 一问一答，回应送出后会话就完成了，由 VPN 网关转发回应时移除
+        if (session.getRemotePort() == 53) {
+            session.finish();
+        }
     }
 
     /**
      * 完成会话
      *
-     * @param sourcePort 本地来源端口，作为识别
+     * @param mappedPort 映射端口
      * @return 会话对象
      */
     @Override
-    public UdpProxySession finishSession(int sourcePort) {
-        UdpProxySession session = super.finishSession(sourcePort);
+    public UdpProxySession finishSession(int mappedPort) {
+        UdpProxySession session = super.finishSession(mappedPort);
         if (session == null) {
-            logger.v("No session to finish at port %d", sourcePort);
+            logger.v("No session to finish at port %d", mappedPort);
             return null;
         } else {
             logger.v("Finished session %08x", session.hashCode());
@@ -22,30 +22,33 @@ import org.apache.commons.io.IOUtils;
 
 import java.io.IOException;
 import java.net.DatagramSocket;
-import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.DatagramChannel;
 import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
 
+import me.xingrz.prox.ProxVpnService;
 import me.xingrz.prox.logging.FormattingLogger;
 import me.xingrz.prox.logging.FormattingLoggers;
 import me.xingrz.prox.selectable.Readable;
 import me.xingrz.prox.transport.AbstractTransportProxy;
+import me.xingrz.prox.transport.EventLoop;
 
 public class UdpProxySession extends AbstractTransportProxy.Session implements Readable {
 
     private final UdpProxy udpProxy;
     private final DatagramChannel serverChannel;
 
-    public UdpProxySession(UdpProxy udpProxy, Selector selector, int sourcePort,
-                           InetAddress remoteAddress, int remotePort) throws IOException {
-        super(selector, sourcePort, remoteAddress, remotePort);
+    public UdpProxySession(UdpProxy udpProxy, EventLoop loop, int sourcePort,
+                           int remoteIp, int remotePort) throws IOException {
+        super(loop, sourcePort, remoteIp, remotePort);
         this.udpProxy = udpProxy;
         this.serverChannel = DatagramChannel.open();
         this.serverChannel.configureBlocking(false);
         this.serverChannel.socket().bind(new InetSocketAddress(0));
+
+        // 保护外网端通道不被 VPN 拦截，会话会被复用，所以只需在创建时做一次
+        ProxVpnService.getInstance().protect(this.serverChannel.socket());
     }
 
     @Override
@@ -58,7 +61,11 @@ public class UdpProxySession extends AbstractTransportProxy.Session implements R
     }
 
     public void send(ByteBuffer buffer) throws IOException {
-        serverChannel.register(selector, SelectionKey.OP_READ, this);
+        // 会话会被复用，只在第一次发送时注册
+        if (serverChannel.keyFor(selector) == null) {
+            serverChannel.register(selector, SelectionKey.OP_READ, this);
+        }
+
         serverChannel.send(buffer, new InetSocketAddress(getRemoteAddress(), getRemotePort()));
     }
 